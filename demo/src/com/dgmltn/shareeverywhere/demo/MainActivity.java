@@ -9,27 +9,55 @@ import android.provider.MediaStore;
 import android.view.Menu;
 import android.view.MenuInflater;
 
+import com.dgmltn.shareeverywhere.ActivityChooserModel.IntentSupplier;
 import com.dgmltn.shareeverywhere.ShareView;
 import com.dgmltn.sharewhere.R;
 
 public class MainActivity extends Activity {
 
+	private static final String TYPE_EMAIL = "message/rfc822";
+	private static final String TYPE_TEXT = "text/plain";
+	private static final String TYPE_IMAGE = "image/jpeg";
+
 	// Instance variables for this activity
 	private Intent[] mSharedIntents;
 
+	// Fills in the share templates only once a share target has been chosen,
+	// so that e.g. the image isn't looked up unless it's actually shared.
+	private final IntentSupplier mIntentSupplier = new IntentSupplier() {
+		@Override
+		public Intent supplyIntent(Intent template) {
+			Intent intent = new Intent(template);
+			String type = template.getType();
+			if (TYPE_EMAIL.equals(type)) {
+				fillEmailIntent(intent);
+			}
+			else if (TYPE_TEXT.equals(type)) {
+				fillTxtIntent(intent);
+			}
+			else if (TYPE_IMAGE.equals(type)) {
+				fillImageIntent(intent);
+			}
+			return intent;
+		}
+	};
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 
-		// Setup the intent to share
-		mSharedIntents = new Intent[] { getEmailIntent(), getTxtIntent(), getImageIntent() };
+		// Setup the intent templates to share
+		mSharedIntents = new Intent[] {
+				getTemplateIntent(TYPE_EMAIL),
+				getTemplateIntent(TYPE_TEXT),
+				getTemplateIntent(TYPE_IMAGE) };
 
 		// Since all the ShareView's in this activity share the same
 		// ActivityChooserModel, setShareIntent() just once, on one of them
 		// is sufficient to initialize them all.
 		ShareView shareView = (ShareView) findViewById(R.id.share_view);
-		shareView.setShareIntent(mSharedIntents);
+		shareView.setShareIntent(mIntentSupplier, mSharedIntents);
 	}
 
 	@Override
@@ -39,39 +67,34 @@ public class MainActivity extends Activity {
 		return true;
 	}
 
-	private Intent getEmailIntent() {
+	private Intent getTemplateIntent(String type) {
+		final Intent intent = new Intent(Intent.ACTION_SEND);
+		intent.setType(type);
+		return intent;
+	}
+
+	private void fillEmailIntent(Intent intent) {
 		String to = "foo@bar.com";
 		String subject = "yo dude";
 		String body = "Here's an email body";
 
-		final Intent intent = new Intent(Intent.ACTION_SEND);
-		intent.setType("message/rfc822");
 		String[] toArr = new String[] { to };
 		intent.putExtra(Intent.EXTRA_EMAIL, toArr);
 		intent.putExtra(Intent.EXTRA_SUBJECT, subject);
 		intent.putExtra(Intent.EXTRA_TEXT, body);
-		return intent;
 	}
 
-	private Intent getTxtIntent() {
+	private void fillTxtIntent(Intent intent) {
 		String subject = "share subject";
 		String text = "here's some share text";
 
-		final Intent intent = new Intent(Intent.ACTION_SEND);
-		intent.setType("text/plain");
 		intent.putExtra(Intent.EXTRA_SUBJECT, subject);
 		intent.putExtra(Intent.EXTRA_TEXT, text);
-		return intent;
 	}
 
-	private Intent getImageIntent() {
+	private void fillImageIntent(Intent intent) {
 		Uri imageUri = getRandomImageUri();
-
-		Intent shareIntent = new Intent();
-		shareIntent.setAction(Intent.ACTION_SEND);
-		shareIntent.putExtra(Intent.EXTRA_STREAM, imageUri);
-		shareIntent.setType("image/jpeg");
-		return shareIntent;
+		intent.putExtra(Intent.EXTRA_STREAM, imageUri);
 	}
 
 	// Get the uri to a random image in the photo gallery
@@ -16,38 +16,49 @@
 
 package com.dgmltn.shareeverywhere;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
-
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
 import android.database.DataSetObservable;
 import android.database.DataSetObserver;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Xml;
 
 /**
  * <p>
@@ -55,12 +66,12 @@ import android.util.Xml;
  * given {@link Intent}. The model is responsible for querying the system for
  * activities that can handle the given intent and order found activities
  * based on historical data of previous choices. The historical data is stored
- * in an application private file. If a client does not want to have persistent
- * choice history the file can be omitted, thus the activities will be ordered
- * based on historical usage for the current session.
+ * in a {@link HistoryStore}, by default an application private XML file. If a
+ * client does not want to have persistent choice history the store can be omitted,
+ * thus the activities will be ordered based on historical usage for the current session.
  * <p>
  * </p>
- * For each backing history file there is a singleton instance of this class. Thus,
+ * For each backing history there is a singleton instance of this class. Thus,
  * several clients that specify the same history file will share the same model. Note
  * that if multiple clients are sharing the same model they should implement semantically
  * equivalent functionality since setting the model intent will change the found
@@ -157,39 +168,65 @@ public class ActivityChooserModel extends DataSetObservable {
 	}
 
 	/**
-	 * Flag for selecting debug mode.
-	 */
-	private static final boolean DEBUG = false;
-
-	/**
-	 * Tag used for logging.
+	 * Listener for choosing an activity which, unlike {@link OnChooseActivityListener},
+	 * is handed a read-only view of the launch intent instead of a copy of it.
+	 * Listeners that only inspect the intent thus cost no extra copy of the
+	 * intent and its extras.
 	 */
-	private static final String LOG_TAG = ActivityChooserModel.class.getSimpleName();
+	public interface OnChooseActivityViewListener {
 
-	/**
-	 * The root tag in the history file.
-	 */
-	private static final String TAG_HISTORICAL_RECORDS = "historical-records";
+		/**
+		 * Called when an activity has been chosen. The client can decide whether
+		 * an activity can be chosen and if so the caller of
+		 * {@link ActivityChooserModel#chooseActivity(int)} will receive and {@link Intent}
+		 * for launching it.
+		 *
+		 * @param host The listener's host model.
+		 * @param intent A view of the intent for launching the chosen activity.
+		 * @return Whether the intent is handled and should not be delivered to clients.
+		 *
+		 * @see ActivityChooserModel#chooseActivity(int)
+		 */
+		public boolean onChooseActivity(ActivityChooserModel host, IntentView intent);
+	}
 
 	/**
-	 * The tag for a record in the history file.
+	 * Builds the intent for launching a chosen activity on demand. This lets
+	 * clients defer work that is only needed for the actual share, such as
+	 * querying content or attaching streams, until an activity is chosen.
+	 *
+	 * @see ActivityChooserModel#setIntent(IntentSupplier, Intent...)
 	 */
-	private static final String TAG_HISTORICAL_RECORD = "historical-record";
+	public interface IntentSupplier {
 
-	/**
-	 * Attribute for the activity.
-	 */
-	private static final String ATTRIBUTE_ACTIVITY = "activity";
+		/**
+		 * Called from {@link ActivityChooserModel#chooseActivity(int)} to build
+		 * the intent for launching the chosen activity.
+		 * <p>
+		 * The template is the one passed to
+		 * {@link ActivityChooserModel#setIntent(IntentSupplier, Intent...)}, not
+		 * a copy, so it must not be modified; the model keeps resolving and
+		 * launching from it. Build the extras on a copy instead, e.g.
+		 * <code>new Intent(template)</code>.
+		 * </p>
+		 *
+		 * @param template The template intent the chosen activity was resolved for.
+		 * @return A new intent, typically a copy of the template with the extras
+		 *         added. The model sets its component. <code>null</code> cancels
+		 *         the choice.
+		 */
+		public Intent supplyIntent(Intent template);
+	}
 
 	/**
-	 * Attribute for the choice time.
+	 * Flag for selecting debug mode.
 	 */
-	private static final String ATTRIBUTE_TIME = "time";
+	private static final boolean DEBUG = false;
 
 	/**
-	 * Attribute for the choice weight.
+	 * Tag used for logging.
 	 */
-	private static final String ATTRIBUTE_WEIGHT = "weight";
+	private static final String LOG_TAG = ActivityChooserModel.class.getSimpleName();
 
 	/**
 	 * The default name of the choice history file.
@@ -212,11 +249,6 @@ public class ActivityChooserModel extends DataSetObservable {
 	 */
 	private static final float DEFAULT_HISTORICAL_RECORD_WEIGHT = 1.0f;
 
-	/**
-	 * The extension of the history file.
-	 */
-	private static final String HISTORY_FILE_EXTENSION = ".xml";
-
 	/**
 	 * Lock to guard the model registry.
 	 */
@@ -228,6 +260,11 @@ public class ActivityChooserModel extends DataSetObservable {
 	private static final Map<String, ActivityChooserModel> sDataModelRegistry =
 			new HashMap<String, ActivityChooserModel>();
 
+	/**
+	 * Whether the registered models are trimmed on memory pressure.
+	 */
+	private static boolean sTrimMemoryCallbacksRegistered;
+
 	/**
 	 * Lock for synchronizing on this instance.
 	 */
@@ -238,26 +275,55 @@ public class ActivityChooserModel extends DataSetObservable {
 	 */
 	private final List<ActivityResolveInfo> mActivities = new ArrayList<ActivityResolveInfo>();
 
+	/**
+	 * The index of each activity in {@link #mActivities} by component,
+	 * rebuilt whenever the activities are loaded or sorted.
+	 */
+	private final Map<ComponentName, Integer> mActivityIndices = new HashMap<ComponentName, Integer>();
+
 	/**
 	 * List with historical choice records.
 	 */
 	private final List<HistoricalRecord> mHistoricalRecords = new ArrayList<HistoricalRecord>();
 
+	/**
+	 * Version of the activities and history, bumped whenever observers are notified.
+	 */
+	private int mSnapshotVersion;
+
 	/**
 	 * Context for accessing resources.
 	 */
 	private final Context mContext;
 
 	/**
-	 * The name of the history file that backs this model.
+	 * The size icons are displayed at, in pixels.
+	 */
+	private final int mIconSize;
+
+	/**
+	 * The store that backs this model, <code>null</code> if the history
+	 * is not persisted.
 	 */
-	private final String mHistoryFileName;
+	private final HistoryStore mHistoryStore;
 
 	/**
 	 * The sorter for ordering activities based on intent and past choices.
 	 */
 	private ActivitySorter mActivitySorter = new DefaultSorter();
 
+	/**
+	 * Collator for ordering activities of equal weight by label, null for
+	 * plain string order.
+	 */
+	private Collator mLabelCollator;
+
+	/**
+	 * Whether {@link ActivityResolveInfo#tieRank} is up to date for the
+	 * current activities and collator.
+	 */
+	private boolean mTieRanksValid;
+
 	/**
 	 * The maximal length of the choice history.
 	 */
@@ -292,6 +358,89 @@ public class ActivityChooserModel extends DataSetObservable {
 	 */
 	private boolean mHistoricalRecordsChanged = true;
 
+	/**
+	 * Records chosen since the last write to an {@link IncrementalHistoryStore}.
+	 */
+	private final List<HistoricalRecord> mUnpersistedHistoricalRecords =
+			new ArrayList<HistoricalRecord>();
+
+	/**
+	 * Flag whether an incremental read of the history store is scheduled.
+	 */
+	private boolean mIncrementalReadScheduled;
+
+	/**
+	 * Incremented with each call to {@link #setIntent(Intent...)}, so that
+	 * only the outcome of the latest call is published.
+	 */
+	private int mIntentGeneration;
+
+	/**
+	 * The intents the activities were resolved for.
+	 */
+	private Intent[] mIntents;
+
+	/**
+	 * {@link #fingerprint(Intent[])} of {@link #mIntents}.
+	 */
+	private int mIntentsFingerprint;
+
+	/**
+	 * Builds the intents for launching chosen activities, may be <code>null</code>.
+	 */
+	private volatile IntentSupplier mIntentSupplier;
+
+	/**
+	 * How long intents are held back before being resolved, 0 for no delay.
+	 */
+	private long mIntentDebounceDelay;
+
+	/**
+	 * The latest intents held back by the debounce delay.
+	 */
+	private Intent[] mPendingIntents;
+
+	/**
+	 * Whether {@link #mPendingIntents} are waiting to be resolved.
+	 */
+	private volatile boolean mHasPendingIntents;
+
+	/**
+	 * Resolves the held back intents once the debounce delay has passed.
+	 */
+	private final Runnable mPendingIntentsFlusher = new Runnable() {
+		public void run() {
+			flushPendingIntents();
+		}
+	};
+
+	/**
+	 * The intents of the activities released on memory pressure, resolved
+	 * again when a client observes the model or on the next
+	 * {@link #setIntent(Intent...)}.
+	 */
+	private Intent[] mReleasedIntents;
+
+	/**
+	 * Whether the activities were released, see {@link #mReleasedIntents}.
+	 */
+	private volatile boolean mHasReleasedActivities;
+
+	/**
+	 * Resolves the released activities again. Posted rather than run in place
+	 * since resolving queries the package manager and notifies the observers.
+	 */
+	private final Runnable mReleasedActivitiesRestorer = new Runnable() {
+		public void run() {
+			restoreReleasedActivities();
+		}
+	};
+
+	/**
+	 * Whether intents are resolved in parallel.
+	 */
+	private boolean mParallelResolution;
+
 	/**
 	 * Hander for scheduling work on client tread.
 	 */
@@ -302,6 +451,12 @@ public class ActivityChooserModel extends DataSetObservable {
 	 */
 	private WeakReference<OnChooseActivityListener> mOnChooseActivityListenerRef;
 
+	/**
+	 * Policy for controlling how the model handles chosen activities, without
+	 * copying the launch intent.
+	 */
+	private WeakReference<OnChooseActivityViewListener> mOnChooseActivityViewListenerRef;
+
 	/**
 	 * Gets the data model backed by the contents of the provided file with historical data.
 	 * Note that only one data model is backed by a given file, thus multiple calls with
@@ -330,8 +485,11 @@ public class ActivityChooserModel extends DataSetObservable {
 		synchronized (sRegistryLock) {
 			ActivityChooserModel dataModel = sDataModelRegistry.get(historyFileName);
 			if (dataModel == null) {
-				dataModel = new ActivityChooserModel(context, historyFileName);
+				HistoryStore historyStore = TextUtils.isEmpty(historyFileName)
+						? null : new XmlHistoryStore(context, historyFileName);
+				dataModel = new ActivityChooserModel(context, historyStore);
 				sDataModelRegistry.put(historyFileName, dataModel);
+				registerTrimMemoryCallbacksLocked(context);
 			}
 			dataModel.readHistoricalData();
 			return dataModel;
@@ -339,34 +497,267 @@ public class ActivityChooserModel extends DataSetObservable {
 	}
 
 	/**
-	 * Creates a new instance.
+	 * Gets the data model registered under the given name, backed by the given
+	 * {@link HistoryStore}. Like {@link #get(Context, String)}, only one data model
+	 * exists per name, so the store is only used when the model is created by
+	 * this call and ignored otherwise.
 	 *
 	 * @param context Context for loading resources.
-	 * @param historyFileName The history XML file.
+	 * @param name The name under which the model is registered.
+	 * @param historyStore The store backing the choice history, <code>null</code>
+	 *        if the history should not be persisted.
+	 *
+	 * @return The model.
+	 *
+	 * @see XmlHistoryStore
+	 * @see BinaryHistoryStore
+	 * @see SQLiteHistoryStore
+	 * @see InMemoryHistoryStore
 	 */
-	private ActivityChooserModel(Context context, String historyFileName) {
-		mContext = context.getApplicationContext();
-		if (!TextUtils.isEmpty(historyFileName)
-				&& !historyFileName.endsWith(HISTORY_FILE_EXTENSION)) {
-			mHistoryFileName = historyFileName + HISTORY_FILE_EXTENSION;
+	public static ActivityChooserModel get(Context context, String name, HistoryStore historyStore) {
+		synchronized (sRegistryLock) {
+			ActivityChooserModel dataModel = sDataModelRegistry.get(name);
+			if (dataModel == null) {
+				dataModel = new ActivityChooserModel(context, historyStore);
+				sDataModelRegistry.put(name, dataModel);
+				registerTrimMemoryCallbacksLocked(context);
+			}
+			dataModel.readHistoricalData();
+			return dataModel;
 		}
-		else {
-			mHistoryFileName = historyFileName;
+	}
+
+	/**
+	 * Registers the callbacks trimming the models on memory pressure, once.
+	 * Memory pressure is only reported in stages as of Ice Cream Sandwich.
+	 */
+	private static void registerTrimMemoryCallbacksLocked(Context context) {
+		if (!sTrimMemoryCallbacksRegistered
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			TrimMemoryCallbacks.register(context.getApplicationContext());
+			sTrimMemoryCallbacksRegistered = true;
+		}
+	}
+
+	/**
+	 * Gets the registered models.
+	 */
+	private static List<ActivityChooserModel> getRegisteredModels() {
+		synchronized (sRegistryLock) {
+			return new ArrayList<ActivityChooserModel>(sDataModelRegistry.values());
+		}
+	}
+
+	/**
+	 * Trims the registered models in stages, by trim level.
+	 */
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private static final class TrimMemoryCallbacks implements ComponentCallbacks2 {
+
+		static void register(Context context) {
+			context.registerComponentCallbacks(new TrimMemoryCallbacks());
+		}
+
+		public void onTrimMemory(int level) {
+			// The running levels are below the hidden levels, yet the low and
+			// critical ones are more pressing than the UI being hidden, so they
+			// also release the icons and flush the history.
+			final boolean releaseIcons = level >= TRIM_MEMORY_RUNNING_LOW;
+			final boolean memoryLow = releaseIcons && level != TRIM_MEMORY_UI_HIDDEN;
+			for (ActivityChooserModel dataModel : getRegisteredModels()) {
+				if (memoryLow) {
+					dataModel.releaseActivitiesIfUnobserved();
+				}
+				if (releaseIcons) {
+					dataModel.releaseIcons();
+				}
+			}
+		}
+
+		public void onLowMemory() {
+			onTrimMemory(TRIM_MEMORY_COMPLETE);
+		}
+
+		public void onConfigurationChanged(Configuration newConfig) {
+			// Nothing to do.
 		}
 	}
 
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context Context for loading resources.
+	 * @param historyStore The history store, may be <code>null</code>.
+	 */
+	private ActivityChooserModel(Context context, HistoryStore historyStore) {
+		mContext = context.getApplicationContext();
+		mHistoryStore = historyStore;
+		mIconSize = mContext.getResources().getDimensionPixelSize(R.dimen.sv__activity_icon_size);
+	}
+
 	/**
 	 * Sets one or more intents for which to choose an activity.
 	 * 
 	 * Multiple intents CAN be passed here. If a package resolves to more
 	 * than one of the intents, and that package is the one chosen, it
 	 * will be started using the first in this list that it resolves to.
+	 * <p>
+	 * The intents are resolved on the calling thread, see also
+	 * {@link #setParallelResolutionEnabled(boolean)}, without holding the
+	 * model lock. If another call to this method completes in the meantime,
+	 * the outcome of this call is dropped.
+	 * </p>
+	 * <p>
+	 * If the intents are equivalent to the current ones, i.e. they only differ
+	 * in their extras (see {@link Intent#filterEquals(Intent)}), the found
+	 * activities are kept and only handed the new intents.
+	 * </p>
+	 * <p>
+	 * If an intent debounce delay is set, intents that are not equivalent to
+	 * the current ones are held back until no new intents have been set for
+	 * the duration of the delay, see {@link #setIntentDebounceDelay(long)}.
+	 * </p>
 	 * 
 	 * @param intent The intent.
 	 */
 	public void setIntent(Intent... intents) {
+		setIntent(null, intents);
+	}
+
+	/**
+	 * Sets one or more lightweight template intents for which to choose an
+	 * activity, along with a supplier for building the full intent once an
+	 * activity has been chosen. Only what matters for resolving, such as the
+	 * action and the type, needs to be set on the templates.
+	 *
+	 * @param supplier Builds the intent for the chosen activity from its template,
+	 *        <code>null</code> to launch a copy of the template.
+	 * @param templates The template intents.
+	 *
+	 * @see #setIntent(Intent...)
+	 */
+	public void setIntent(IntentSupplier supplier, Intent... templates) {
+		Intent[] intents = templates;
+		synchronized (mInstanceLock) {
+			mIntentSupplier = supplier;
+			mReleasedIntents = null;
+			mHasReleasedActivities = false;
+			if (mIntentDebounceDelay > 0 && !isCurrentIntentSetLocked(intents)) {
+				// Drop the outcome of any resolution still in flight.
+				mIntentGeneration++;
+				mPendingIntents = intents;
+				mHasPendingIntents = true;
+				mHandler.removeCallbacks(mPendingIntentsFlusher);
+				mHandler.postDelayed(mPendingIntentsFlusher, mIntentDebounceDelay);
+				return;
+			}
+			cancelPendingIntentsLocked();
+		}
+		resolveIntents(intents);
+	}
+
+	/**
+	 * Sets the intents for which to choose an activity unless they are
+	 * equivalent to the current ones, in which case the model is left alone,
+	 * including the extras of its intents and its {@link IntentSupplier}.
+	 * For clients that pass their own intents to
+	 * {@link #chooseActivity(int, Intent[], IntentSupplier)}.
+	 *
+	 * @param intents The intents.
+	 */
+	void setIntentUnlessEquivalent(Intent[] intents) {
+		synchronized (mInstanceLock) {
+			if (isCurrentIntentSetLocked(intents)) {
+				return;
+			}
+		}
+		setIntent(mIntentSupplier, intents);
+	}
+
+	/**
+	 * Sets how long intents passed to {@link #setIntent(Intent...)} are held
+	 * back, which is useful when the shared content changes rapidly, for
+	 * example while the user types. Only the latest intents set within the
+	 * delay are resolved and ranked, once no new intents have been set for the
+	 * duration of the delay. Intents that are equivalent to the current ones
+	 * are never held back since they don't need to be resolved.
+	 * {@link #chooseActivity(int)} always launches the latest intents.
+	 * Defaults to 0, i.e. no delay.
+	 *
+	 * @param delayMillis The delay in milliseconds.
+	 */
+	public void setIntentDebounceDelay(long delayMillis) {
+		synchronized (mInstanceLock) {
+			mIntentDebounceDelay = delayMillis;
+		}
+		if (delayMillis <= 0) {
+			flushPendingIntents();
+		}
+	}
+
+	/**
+	 * Resolves the intents held back by {@link #setIntentDebounceDelay(long)},
+	 * if any, right away.
+	 */
+	private void flushPendingIntents() {
+		Intent[] intents;
+		synchronized (mInstanceLock) {
+			if (!mHasPendingIntents) {
+				return;
+			}
+			intents = mPendingIntents;
+			cancelPendingIntentsLocked();
+		}
+		resolveIntents(intents);
+	}
+
+	private void cancelPendingIntentsLocked() {
+		if (mHasPendingIntents) {
+			mHandler.removeCallbacks(mPendingIntentsFlusher);
+			mPendingIntents = null;
+			mHasPendingIntents = false;
+		}
+	}
+
+	/**
+	 * Resolves the intents and publishes the found activities.
+	 */
+	private void resolveIntents(Intent[] intents) {
+		final int generation;
+		final boolean parallelResolution;
+		synchronized (mInstanceLock) {
+			generation = ++mIntentGeneration;
+			if (isCurrentIntentSetLocked(intents)) {
+				swapIntentsLocked(intents);
+				return;
+			}
+			parallelResolution = mParallelResolution;
+		}
+
+		List<ActivityResolveInfo> activities = resolveActivities(intents, parallelResolution);
+
+		synchronized (mInstanceLock) {
+			if (generation != mIntentGeneration) {
+				return;
+			}
+			loadActivitiesLocked(intents, activities);
+		}
+	}
+
+	/**
+	 * Sets whether the intents passed to {@link #setIntent(Intent...)} are
+	 * resolved in parallel on a small pool of worker threads, including loading
+	 * the labels and icons of the found activities. This only applies to a set
+	 * of more than one intent none of which targets a specific component, since
+	 * those are batched into a single query anyway. The found activities are
+	 * merged in the order of the intents, exactly as when resolving serially.
+	 * Defaults to <code>false</code>.
+	 *
+	 * @param enabled Whether to resolve in parallel.
+	 */
+	public void setParallelResolutionEnabled(boolean enabled) {
 		synchronized (mInstanceLock) {
-			loadActivitiesLocked(intents);
+			mParallelResolution = enabled;
 		}
 	}
 
@@ -405,7 +796,10 @@ public class ActivityChooserModel extends DataSetObservable {
 	 * @return The index if found, -1 otherwise.
 	 */
 	public int getActivityIndex(ActivityResolveInfo activity) {
-		return mActivities.indexOf(activity);
+		synchronized (mInstanceLock) {
+			Integer index = mActivityIndices.get(activity.componentName);
+			return index != null ? index : -1;
+		}
 	}
 
 	/**
@@ -420,21 +814,74 @@ public class ActivityChooserModel extends DataSetObservable {
 	 * </p>
 	 *
 	 * @return An {@link Intent} for launching the activity or null if the
-	 *         policy has consumed the intent.
+	 *         policy has consumed the intent, or if the activity can't handle
+	 *         the latest intents set while debouncing.
 	 *
 	 * @see HistoricalRecord
 	 * @see OnChooseActivityListener
+	 * @see #setIntentDebounceDelay(long)
 	 */
 	public Intent chooseActivity(int index) {
+		return chooseActivity(index, null, mIntentSupplier);
+	}
+
+	/**
+	 * Chooses an activity like {@link #chooseActivity(int)}, but launches it
+	 * with the given intents instead of the ones set on the model. This lets
+	 * several clients, such as the rows of a list, share one model while each
+	 * shares its own content.
+	 *
+	 * @param index The index of the activity.
+	 * @param intents Intents equivalent to the ones set on the model, in the
+	 *        same order, i.e. they may only differ in their extras (see
+	 *        {@link Intent#filterEquals(Intent)}). <code>null</code> to use the
+	 *        intents set on the model.
+	 * @param supplier Builds the intent for the chosen activity from its
+	 *        template, <code>null</code> to launch a copy of the template.
+	 * @return An {@link Intent} for launching the activity, or null as with
+	 *         {@link #chooseActivity(int)}.
+	 */
+	public Intent chooseActivity(int index, Intent[] intents, IntentSupplier supplier) {
 		ActivityResolveInfo chosenActivity = mActivities.get(index);
 
-		ComponentName chosenName = new ComponentName(
-				chosenActivity.resolveInfo.activityInfo.packageName,
-				chosenActivity.resolveInfo.activityInfo.name);
+		ComponentName chosenName = chosenActivity.componentName;
 
-		Intent choiceIntent = new Intent(chosenActivity.intent);
+		if (mHasPendingIntents) {
+			// The user chose from what is shown, but must share the latest content.
+			flushPendingIntents();
+			chosenActivity = findActivity(chosenName);
+			if (chosenActivity == null) {
+				return null;
+			}
+		}
+
+		Intent choiceIntent;
+		final Intent chosenIntent = intents != null && chosenActivity.intentIndex < intents.length
+				? intents[chosenActivity.intentIndex] : chosenActivity.getIntent();
+		if (supplier != null) {
+			choiceIntent = supplier.supplyIntent(chosenIntent);
+			if (choiceIntent == null) {
+				return null;
+			}
+			if (choiceIntent == chosenIntent) {
+				choiceIntent = new Intent(choiceIntent);
+			}
+		}
+		else {
+			choiceIntent = new Intent(chosenIntent);
+		}
 		choiceIntent.setComponent(chosenName);
 
+		if (mOnChooseActivityViewListenerRef != null) {
+			OnChooseActivityViewListener listener = mOnChooseActivityViewListenerRef.get();
+			if (listener != null) {
+				final boolean handled = listener.onChooseActivity(this, new IntentView(choiceIntent));
+				if (handled) {
+					return null;
+				}
+			}
+		}
+
 		if (mOnChooseActivityListenerRef != null) {
 			OnChooseActivityListener listener = mOnChooseActivityListenerRef.get();
 			if (listener != null) {
@@ -454,6 +901,18 @@ public class ActivityChooserModel extends DataSetObservable {
 		return choiceIntent;
 	}
 
+	/**
+	 * Finds the activity with the given component name.
+	 *
+	 * @return The activity, <code>null</code> if not found.
+	 */
+	private ActivityResolveInfo findActivity(ComponentName name) {
+		synchronized (mInstanceLock) {
+			Integer index = mActivityIndices.get(name);
+			return index != null ? mActivities.get(index) : null;
+		}
+	}
+
 	/**
 	 * Sets the listener for choosing an activity.
 	 *
@@ -468,6 +927,23 @@ public class ActivityChooserModel extends DataSetObservable {
 		}
 	}
 
+	/**
+	 * Sets the listener for choosing an activity that gets a read-only view
+	 * of the launch intent. With only this listener set, at most one copy of
+	 * the intent is made when an activity is chosen, and none if the intent
+	 * comes from an {@link IntentSupplier}.
+	 *
+	 * @param listener The listener.
+	 */
+	public void setOnChooseActivityViewListener(OnChooseActivityViewListener listener) {
+		if (listener == null) {
+			mOnChooseActivityViewListenerRef = null;
+		}
+		else {
+			mOnChooseActivityViewListenerRef = new WeakReference<>(listener);
+		}
+	}
+
 	/**
 	 * Gets the default activity, The default activity is defined as the one
 	 * with highest rank i.e. the first one in the list of activities that can
@@ -510,16 +986,14 @@ public class ActivityChooserModel extends DataSetObservable {
 			weight = DEFAULT_HISTORICAL_RECORD_WEIGHT;
 		}
 
-		ComponentName defaultName = new ComponentName(
-				newDefaultActivity.resolveInfo.activityInfo.packageName,
-				newDefaultActivity.resolveInfo.activityInfo.name);
+		ComponentName defaultName = newDefaultActivity.componentName;
 		HistoricalRecord historicalRecord = new HistoricalRecord(defaultName,
 				System.currentTimeMillis(), weight);
 		addHisoricalRecord(historicalRecord);
 	}
 
 	/**
-	 * Reads the history data from the backing file if the latter
+	 * Reads the history data from the backing store if the latter
 	 * was provided. Calling this method more than once before a call
 	 * to {@link #persistHistoricalData()} has been made has no effect.
 	 * <p>
@@ -528,15 +1002,28 @@ public class ActivityChooserModel extends DataSetObservable {
 	 *       {@link DataSetObserver}s will be notified. Also no historical
 	 *       data is read until this method is invoked.
 	 * <p>
+	 * <p>
+	 * <strong>Note:</strong> An {@link IncrementalHistoryStore} is read on
+	 *       every call, since other processes may have added records to it.
+	 *       Only the records not seen yet are read and merged.
+	 * </p>
 	 */
 	private void readHistoricalData() {
 		synchronized (mInstanceLock) {
-			if (!mCanReadHistoricalData || !mHistoricalRecordsChanged) {
+			if (mHistoryStore instanceof IncrementalHistoryStore) {
+				mReadShareHistoryCalled = true;
+				if (!mIncrementalReadScheduled) {
+					mIncrementalReadScheduled = true;
+					SERIAL_EXECUTOR.execute(new IncrementalHistoryLoader());
+				}
+				return;
+			}
+			if (!mCanReadHistoricalData || !mHistoricalRecordsChanged) {
 				return;
 			}
 			mCanReadHistoricalData = false;
 			mReadShareHistoryCalled = true;
-			if (!TextUtils.isEmpty(mHistoryFileName)) {
+			if (mHistoryStore != null) {
 				/*AsyncTask.*/SERIAL_EXECUTOR.execute(new HistoryLoader());
 			}
 		}
@@ -545,7 +1032,26 @@ public class ActivityChooserModel extends DataSetObservable {
 	private static final Executor SERIAL_EXECUTOR = Executors.newSingleThreadExecutor();
 
 	/**
-	 * Persists the history data to the backing file if the latter
+	 * The number of worker threads for resolving intents in parallel.
+	 */
+	private static final int RESOLVER_POOL_SIZE = 3;
+
+	/**
+	 * Lazily created pool for resolving intents in parallel.
+	 */
+	private static ExecutorService sResolverExecutor;
+
+	private static ExecutorService getResolverExecutor() {
+		synchronized (sRegistryLock) {
+			if (sResolverExecutor == null) {
+				sResolverExecutor = Executors.newFixedThreadPool(RESOLVER_POOL_SIZE);
+			}
+			return sResolverExecutor;
+		}
+	}
+
+	/**
+	 * Persists the history data to the backing store if the latter
 	 * was provided. Calling this method before a call to {@link #readHistoricalData()}
 	 * throws an exception. Calling this method more than one without choosing an
 	 * activity has not effect.
@@ -563,7 +1069,12 @@ public class ActivityChooserModel extends DataSetObservable {
 			}
 			mHistoricalRecordsChanged = false;
 			mCanReadHistoricalData = true;
-			if (!TextUtils.isEmpty(mHistoryFileName)) {
+			if (mHistoryStore instanceof IncrementalHistoryStore) {
+				if (!mUnpersistedHistoricalRecords.isEmpty()) {
+					SERIAL_EXECUTOR.execute(new IncrementalHistoryPersister());
+				}
+			}
+			else if (mHistoryStore != null) {
 				/*AsyncTask.*/SERIAL_EXECUTOR.execute(new HistoryPersister());
 			}
 		}
@@ -586,6 +1097,34 @@ public class ActivityChooserModel extends DataSetObservable {
 		}
 	}
 
+	/**
+	 * Sets the collator for ordering activities of equal weight by their
+	 * label, e.g. <code>Collator.getInstance()</code> for the rules of the
+	 * default locale. Defaults to null, which orders labels by their UTF-16
+	 * code units. The collation key of a label is computed once, when the
+	 * activity is loaded, so sorting costs no more than with plain strings.
+	 * <p>
+	 * <strong>Note:</strong> The collator must not be used by other threads
+	 * while it is set on a model.
+	 * </p>
+	 *
+	 * @param collator The collator, or null.
+	 */
+	public void setLabelCollator(Collator collator) {
+		synchronized (mInstanceLock) {
+			if (mLabelCollator == collator) {
+				return;
+			}
+			mLabelCollator = collator;
+			final int activityCount = mActivities.size();
+			for (int i = 0; i < activityCount; i++) {
+				mActivities.get(i).updateCollationKey(collator);
+			}
+			mTieRanksValid = false;
+			sortActivities();
+		}
+	}
+
 	/**
 	 * Sorts the activities based on history and an intent. If
 	 * a sorter is not specified this a default implementation is used.
@@ -597,6 +1136,7 @@ public class ActivityChooserModel extends DataSetObservable {
 			if (mActivitySorter != null && !mActivities.isEmpty()) {
 				mActivitySorter.sort(mActivities,
 						Collections.unmodifiableList(mHistoricalRecords));
+				indexActivitiesLocked();
 				notifyChanged();
 			}
 		}
@@ -648,6 +1188,141 @@ public class ActivityChooserModel extends DataSetObservable {
 		}
 	}
 
+	/**
+	 * Gets the version of the activities and history. It changes every time
+	 * the observers of this model are notified of a change, so clients can
+	 * tell whether something derived from the model is still current.
+	 *
+	 * @return The version.
+	 */
+	public int getSnapshotVersion() {
+		synchronized (mInstanceLock) {
+			return mSnapshotVersion;
+		}
+	}
+
+	@Override
+	public void notifyChanged() {
+		synchronized (mInstanceLock) {
+			mSnapshotVersion++;
+		}
+		super.notifyChanged();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Observers are notified with {@link DataSetObserver#onInvalidated()}
+	 * when the model released the icons of its activities on memory
+	 * pressure, so they should drop whatever they derived from them.
+	 * The icons are loaded again once asked for.
+	 * </p>
+	 */
+	@Override
+	public void notifyInvalidated() {
+		synchronized (mInstanceLock) {
+			mSnapshotVersion++;
+		}
+		super.notifyInvalidated();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If the activities were released on memory pressure, they are resolved
+	 * again shortly after, on the thread of this model.
+	 * </p>
+	 */
+	@Override
+	public void registerObserver(DataSetObserver observer) {
+		super.registerObserver(observer);
+		postRestoreReleasedActivities();
+	}
+
+	/**
+	 * Releases the icons of the activities and hands pending history to the
+	 * store, since the UI is hidden or memory runs low.
+	 */
+	private void releaseIcons() {
+		synchronized (mInstanceLock) {
+			if (mReadShareHistoryCalled) {
+				persistHistoricalData();
+			}
+			boolean released = false;
+			final int activityCount = mActivities.size();
+			for (int i = 0; i < activityCount; i++) {
+				ActivityResolveInfo activity = mActivities.get(i);
+				if (activity.icon != null) {
+					activity.icon = null;
+					released = true;
+				}
+			}
+			if (!released) {
+				return;
+			}
+		}
+		notifyInvalidated();
+	}
+
+	/**
+	 * Releases the activities unless some client observes the model. They are
+	 * resolved again from the same intents when the model is next used.
+	 */
+	private void releaseActivitiesIfUnobserved() {
+		if (isObserved()) {
+			return;
+		}
+		synchronized (mInstanceLock) {
+			if (mActivities.isEmpty() || mIntents == null) {
+				return;
+			}
+			mReleasedIntents = mIntents;
+			mHasReleasedActivities = true;
+			mIntents = null;
+			mIntentsFingerprint = 0;
+			mActivities.clear();
+			mActivityIndices.clear();
+			mTieRanksValid = false;
+		}
+		notifyChanged();
+		// A client may have started observing meanwhile.
+		if (isObserved()) {
+			postRestoreReleasedActivities();
+		}
+	}
+
+	private boolean isObserved() {
+		synchronized (mObservers) {
+			return !mObservers.isEmpty();
+		}
+	}
+
+	private void postRestoreReleasedActivities() {
+		if (mHasReleasedActivities) {
+			mHandler.removeCallbacks(mReleasedActivitiesRestorer);
+			mHandler.post(mReleasedActivitiesRestorer);
+		}
+	}
+
+	/**
+	 * Resolves the activities released on memory pressure again, if any.
+	 */
+	private void restoreReleasedActivities() {
+		if (!mHasReleasedActivities) {
+			return;
+		}
+		Intent[] intents;
+		synchronized (mInstanceLock) {
+			if (!mHasReleasedActivities) {
+				return;
+			}
+			intents = mReleasedIntents;
+			mReleasedIntents = null;
+			mHasReleasedActivities = false;
+		}
+		resolveIntents(intents);
+	}
+
 	/**
 	 * Adds a historical record.
 	 *
@@ -658,6 +1333,9 @@ public class ActivityChooserModel extends DataSetObservable {
 		synchronized (mInstanceLock) {
 			final boolean added = mHistoricalRecords.add(historicalRecord);
 			if (added) {
+				if (mHistoryStore instanceof IncrementalHistoryStore) {
+					mUnpersistedHistoricalRecords.add(historicalRecord);
+				}
 				mHistoricalRecordsChanged = true;
 				pruneExcessiveHistoricalRecordsLocked();
 				persistHistoricalData();
@@ -688,29 +1366,429 @@ public class ActivityChooserModel extends DataSetObservable {
 	/**
 	 * Loads the activities.
 	 */
-	private void loadActivitiesLocked(Intent... intents) {
+	private void loadActivitiesLocked(Intent[] intents, List<ActivityResolveInfo> activities) {
+		mIntents = intents == null ? null : intents.clone();
+		mIntentsFingerprint = fingerprint(intents);
+
+		// Collators are not thread safe, so the keys are computed here under
+		// the lock rather than by the resolving threads.
+		final int activityCount = activities.size();
+		for (int i = 0; i < activityCount; i++) {
+			ActivityResolveInfo activity = activities.get(i);
+			activity.intents = mIntents;
+			if (mLabelCollator != null) {
+				activity.updateCollationKey(mLabelCollator);
+			}
+		}
+
 		mActivities.clear();
+		mActivities.addAll(activities);
+		mTieRanksValid = false;
+		indexActivitiesLocked();
 
-		if (intents == null || intents.length == 0) {
+		if (mActivities.isEmpty()) {
 			notifyChanged();
 			return;
 		}
 
+		sortActivities();
+	}
+
+	/**
+	 * Ranks the activities by label, which breaks ties in weight, unless the
+	 * ranks are up to date.
+	 */
+	private void rankTiesLocked(List<ActivityResolveInfo> activities) {
+		if (mTieRanksValid && activities == mActivities) {
+			return;
+		}
+		List<ActivityResolveInfo> byLabel = new ArrayList<ActivityResolveInfo>(activities);
+		Collections.sort(byLabel, LABEL_ORDER);
+		final int activityCount = byLabel.size();
+		for (int i = 0; i < activityCount; i++) {
+			byLabel.get(i).tieRank = i;
+		}
+		mTieRanksValid = activities == mActivities;
+	}
+
+	/**
+	 * Orders activities by label, using the collation keys if set.
+	 */
+	private static final Comparator<ActivityResolveInfo> LABEL_ORDER = new Comparator<ActivityResolveInfo>() {
+		public int compare(ActivityResolveInfo lhs, ActivityResolveInfo rhs) {
+			if (lhs.collationKey != null && rhs.collationKey != null) {
+				return lhs.collationKey.compareTo(rhs.collationKey);
+			}
+			return lhs.label.compareTo(rhs.label);
+		}
+	};
+
+	/**
+	 * Rebuilds the index of the activities by component.
+	 */
+	private void indexActivitiesLocked() {
+		mActivityIndices.clear();
+		final int activityCount = mActivities.size();
+		for (int i = 0; i < activityCount; i++) {
+			mActivityIndices.put(mActivities.get(i).componentName, i);
+		}
+	}
+
+	/**
+	 * Whether the intents only differ from the current ones in their extras,
+	 * in which case they resolve to the same activities.
+	 */
+	private boolean isCurrentIntentSetLocked(Intent[] intents) {
+		final Intent[] current = mIntents;
+		if (current == null || intents == null || current.length != intents.length
+				|| mIntentsFingerprint != fingerprint(intents)) {
+			return false;
+		}
+		final int intentCount = intents.length;
+		for (int i = 0; i < intentCount; i++) {
+			if (current[i] == null ? intents[i] != null
+					: intents[i] == null || !current[i].filterEquals(intents[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hands the activities the given intents, which must be equivalent to the
+	 * current ones.
+	 */
+	private void swapIntentsLocked(Intent[] intents) {
+		// The activities share the intent table, so replacing its content
+		// hands them all the new intents.
+		System.arraycopy(intents, 0, mIntents, 0, intents.length);
+	}
+
+	/**
+	 * Computes a hash of the intents that ignores their extras.
+	 */
+	private static int fingerprint(Intent[] intents) {
+		if (intents == null) {
+			return 0;
+		}
+		int result = 1;
+		for (Intent intent : intents) {
+			result = 31 * result + (intent == null ? 0 : intent.filterHashCode());
+		}
+		return result;
+	}
+
+	/**
+	 * Resolves the activities that can handle the intents. Does not
+	 * touch the state of the model, so the lock need not be held.
+	 *
+	 * @param intents The intents, may be <code>null</code> or contain <code>null</code>s.
+	 * @param parallel Whether to resolve the intents in parallel if possible.
+	 * @return The activities, in intent order.
+	 */
+	private List<ActivityResolveInfo> resolveActivities(Intent[] intents, boolean parallel) {
+		List<ActivityResolveInfo> activities = new ArrayList<ActivityResolveInfo>();
+		if (intents == null || intents.length == 0) {
+			return activities;
+		}
+
+		if (parallel && canResolveInParallel(intents)) {
+			return resolveActivitiesInParallel(intents);
+		}
+
+		List<List<ResolveInfo>> resolveInfos = queryIntentActivities(intents);
+
+		// The first intent a package resolves to wins.
+		Set<String> packageNames = new HashSet<String>();
+		final int intentCount = intents.length;
+		for (int i = 0; i < intentCount; i++) {
+			List<ResolveInfo> intentResolveInfos = resolveInfos.get(i);
+			final int resolveInfoCount = intentResolveInfos.size();
+			for (int j = 0; j < resolveInfoCount; j++) {
+				ResolveInfo resolveInfo = intentResolveInfos.get(j);
+				if (packageNames.add(resolveInfo.activityInfo.packageName)) {
+					activities.add(new ActivityResolveInfo(resolveInfo, i));
+				}
+			}
+		}
+		return activities;
+	}
+
+	/**
+	 * Whether resolving the intents in parallel can pay off: there is more
+	 * than one intent and none targets a specific component.
+	 */
+	private static boolean canResolveInParallel(Intent[] intents) {
+		int intentCount = 0;
 		for (Intent intent : intents) {
 			if (intent != null) {
-				List<ResolveInfo> resolveInfos =
-						mContext.getPackageManager().queryIntentActivities(intent, 0);
+				if (intent.getComponent() != null) {
+					return false;
+				}
+				intentCount++;
+			}
+		}
+		return intentCount > 1;
+	}
 
-				for (ResolveInfo resolveInfo : resolveInfos) {
-					ActivityResolveInfo info = new ActivityResolveInfo(resolveInfo, intent);
-					if (!info.isContainedIn(mActivities)) {
-						mActivities.add(info);
-					}
+	/**
+	 * Resolves each of the intents and loads the found activities on the
+	 * resolver pool, except for the first intent, which is handled on the
+	 * calling thread. The results are merged in intent order.
+	 */
+	private List<ActivityResolveInfo> resolveActivitiesInParallel(final Intent[] intents) {
+		final int intentCount = intents.length;
+		List<Future<List<ActivityResolveInfo>>> futures =
+				new ArrayList<Future<List<ActivityResolveInfo>>>(intentCount);
+		int firstIndex = -1;
+		for (int i = 0; i < intentCount; i++) {
+			futures.add(null);
+			final Intent intent = intents[i];
+			if (intent == null) {
+				continue;
+			}
+			boolean duplicate = false;
+			for (int j = 0; j < i && !duplicate; j++) {
+				duplicate = intents[j] != null && intent.filterEquals(intents[j]);
+			}
+			if (duplicate) {
+				continue;
+			}
+			if (firstIndex < 0) {
+				firstIndex = i;
+			}
+			else {
+				futures.set(i, getResolverExecutor().submit(new IntentResolver(intent, i)));
+			}
+		}
+
+		List<ActivityResolveInfo> activities = new ArrayList<ActivityResolveInfo>();
+		Set<String> packageNames = new HashSet<String>();
+		for (int i = 0; i < intentCount; i++) {
+			List<ActivityResolveInfo> intentActivities;
+			if (i == firstIndex) {
+				intentActivities = new IntentResolver(intents[i], i).call();
+			}
+			else if (futures.get(i) != null) {
+				intentActivities = getResolved(futures.get(i), intents[i], i);
+			}
+			else {
+				continue;
+			}
+			final int activityCount = intentActivities.size();
+			for (int j = 0; j < activityCount; j++) {
+				ActivityResolveInfo activity = intentActivities.get(j);
+				if (packageNames.add(activity.getPackageName())) {
+					activities.add(activity);
 				}
 			}
 		}
+		return activities;
+	}
 
-		sortActivities();
+	/**
+	 * Waits for the outcome of an {@link IntentResolver} and resolves the
+	 * intent on the calling thread if the wait is interrupted.
+	 */
+	private List<ActivityResolveInfo> getResolved(Future<List<ActivityResolveInfo>> future,
+			Intent intent, int intentIndex) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return new IntentResolver(intent, intentIndex).call();
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Resolves a single intent and loads the found activities.
+	 */
+	private final class IntentResolver implements Callable<List<ActivityResolveInfo>> {
+
+		private final Intent mIntent;
+
+		private final int mIntentIndex;
+
+		public IntentResolver(Intent intent, int intentIndex) {
+			mIntent = intent;
+			mIntentIndex = intentIndex;
+		}
+
+		public List<ActivityResolveInfo> call() {
+			List<ResolveInfo> resolveInfos =
+					mContext.getPackageManager().queryIntentActivities(mIntent, 0);
+			final int resolveInfoCount = resolveInfos.size();
+			List<ActivityResolveInfo> activities = new ArrayList<ActivityResolveInfo>(resolveInfoCount);
+			for (int i = 0; i < resolveInfoCount; i++) {
+				activities.add(new ActivityResolveInfo(resolveInfos.get(i), mIntentIndex));
+			}
+			return activities;
+		}
+	}
+
+	/**
+	 * Queries the activities that can handle each of the intents with as few
+	 * calls to the {@link PackageManager} as possible:
+	 * <ul>
+	 * <li>Intents that only differ in their extras resolve to the same
+	 * activities, so they are queried once.</li>
+	 * <li>Intents targeting a specific component that come before the first
+	 * untargeted intent are folded into its query as the <code>specifics</code>
+	 * of {@link PackageManager#queryIntentActivityOptions}. Untargeted intents
+	 * can't be folded like that since the package manager only resolves a
+	 * specific intent to its single best match.</li>
+	 * </ul>
+	 * The package manager leaves the activities matched by a specific intent
+	 * out of the results of the untargeted one, which is only what querying
+	 * one at a time amounts to if the specific intent comes first, so the
+	 * targeted intents after the first untargeted one are queried separately.
+	 * If the combined query fails, the intents are queried one at a time.
+	 *
+	 * @param intents The intents, may contain <code>null</code>s.
+	 * @return The activities, per intent. The list for an intent that only
+	 *         differs from an earlier one in its extras is empty since the
+	 *         earlier intent already accounts for its activities.
+	 */
+	private List<List<ResolveInfo>> queryIntentActivities(Intent[] intents) {
+		final PackageManager pm = mContext.getPackageManager();
+		final int intentCount = intents.length;
+		final List<ResolveInfo> none = Collections.emptyList();
+
+		List<List<ResolveInfo>> resolveInfos = new ArrayList<List<ResolveInfo>>(intentCount);
+		List<Integer> specificIndexes = new ArrayList<Integer>();
+		int generalIndex = -1;
+
+		for (int i = 0; i < intentCount; i++) {
+			resolveInfos.add(none);
+			Intent intent = intents[i];
+			if (intent == null) {
+				continue;
+			}
+			if (intent.getComponent() != null) {
+				if (generalIndex < 0) {
+					specificIndexes.add(i);
+				}
+				else {
+					resolveInfos.set(i, pm.queryIntentActivities(intent, 0));
+				}
+				continue;
+			}
+			boolean duplicate = false;
+			for (int j = 0; j < i && !duplicate; j++) {
+				duplicate = intents[j] != null && intent.filterEquals(intents[j]);
+			}
+			if (duplicate) {
+				continue;
+			}
+			if (generalIndex < 0) {
+				generalIndex = i;
+			}
+			else {
+				resolveInfos.set(i, pm.queryIntentActivities(intent, 0));
+			}
+		}
+
+		if (generalIndex < 0) {
+			for (int i : specificIndexes) {
+				resolveInfos.set(i, pm.queryIntentActivities(intents[i], 0));
+			}
+			return resolveInfos;
+		}
+
+		if (specificIndexes.isEmpty()) {
+			resolveInfos.set(generalIndex, pm.queryIntentActivities(intents[generalIndex], 0));
+			return resolveInfos;
+		}
+
+		final int specificCount = specificIndexes.size();
+		Intent[] specifics = new Intent[specificCount];
+		for (int i = 0; i < specificCount; i++) {
+			specifics[i] = intents[specificIndexes.get(i)];
+		}
+		try {
+			List<ResolveInfo> batch =
+					pm.queryIntentActivityOptions(null, specifics, intents[generalIndex], 0);
+			for (int i = 0; i < specificCount; i++) {
+				resolveInfos.set(specificIndexes.get(i), new ArrayList<ResolveInfo>());
+			}
+			resolveInfos.set(generalIndex, new ArrayList<ResolveInfo>());
+			for (ResolveInfo resolveInfo : batch) {
+				final int index = resolveInfo.specificIndex >= 0 && resolveInfo.specificIndex < specificCount
+						? specificIndexes.get(resolveInfo.specificIndex) : generalIndex;
+				resolveInfos.get(index).add(resolveInfo);
+			}
+		}
+		catch (RuntimeException e) {
+			Log.w(LOG_TAG, "Batched activity query failed, querying one at a time", e);
+			resolveInfos.set(generalIndex, pm.queryIntentActivities(intents[generalIndex], 0));
+			for (int i : specificIndexes) {
+				resolveInfos.set(i, pm.queryIntentActivities(intents[i], 0));
+			}
+		}
+		return resolveInfos;
+	}
+
+	/**
+	 * A read-only view of an intent. Call {@link #copy()} for an intent
+	 * that can be modified or kept.
+	 */
+	public static final class IntentView {
+
+		private final Intent mIntent;
+
+		IntentView(Intent intent) {
+			mIntent = intent;
+		}
+
+		public String getAction() {
+			return mIntent.getAction();
+		}
+
+		public String getType() {
+			return mIntent.getType();
+		}
+
+		public Uri getData() {
+			return mIntent.getData();
+		}
+
+		public ComponentName getComponent() {
+			return mIntent.getComponent();
+		}
+
+		public boolean hasExtra(String name) {
+			return mIntent.hasExtra(name);
+		}
+
+		public String getStringExtra(String name) {
+			return mIntent.getStringExtra(name);
+		}
+
+		public CharSequence getCharSequenceExtra(String name) {
+			return mIntent.getCharSequenceExtra(name);
+		}
+
+		/**
+		 * Copies the intent, including its extras.
+		 *
+		 * @return A new intent. Changes to it do not affect the launch.
+		 */
+		public Intent copy() {
+			return new Intent(mIntent);
+		}
+
+		@Override
+		public String toString() {
+			return mIntent.toString();
+		}
 	}
 
 	/**
@@ -808,20 +1886,69 @@ public class ActivityChooserModel extends DataSetObservable {
 		}
 	}
 
+	/**
+	 * Draws an icon once into a bitmap of exactly the size it is displayed at,
+	 * so that the model does not hold on to large launcher icons and views
+	 * do not scale them on every draw.
+	 *
+	 * @param icon The icon as loaded from the package manager.
+	 * @return The rasterized icon, or the icon itself if it could not be rasterized.
+	 */
+	private Drawable rasterizeIcon(Drawable icon) {
+		final int size = mIconSize;
+		if (icon == null || size <= 0) {
+			return icon;
+		}
+		int width = icon.getIntrinsicWidth();
+		int height = icon.getIntrinsicHeight();
+		if (width <= 0 || height <= 0) {
+			width = size;
+			height = size;
+		}
+
+		Bitmap bitmap;
+		try {
+			bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+		}
+		catch (OutOfMemoryError oome) {
+			Log.w(LOG_TAG, "Could not rasterize icon", oome);
+			return icon;
+		}
+
+		// Scale to fit, keeping the aspect ratio.
+		final float scale = Math.min((float) size / width, (float) size / height);
+		final int scaledWidth = Math.round(width * scale);
+		final int scaledHeight = Math.round(height * scale);
+		final int left = (size - scaledWidth) / 2;
+		final int top = (size - scaledHeight) / 2;
+		Rect oldBounds = icon.copyBounds();
+		icon.setBounds(left, top, left + scaledWidth, top + scaledHeight);
+		icon.draw(new Canvas(bitmap));
+		icon.setBounds(oldBounds);
+
+		return new BitmapDrawable(mContext.getResources(), bitmap);
+	}
+
 	/**
 	 * Represents an activity.
 	 */
 	public final class ActivityResolveInfo implements Comparable<ActivityResolveInfo> {
 
 		/**
-		 * The {@link ResolveInfo} of the activity.
+		 * The component of the activity, with interned names.
 		 */
-		public final ResolveInfo resolveInfo;
+		final ComponentName componentName;
 
 		/**
-		 * The specific Intent associated with this activity.
+		 * The intents of the snapshot this activity belongs to. Shared by
+		 * all activities of the snapshot and guarded by the model lock.
 		 */
-		public final Intent intent;
+		Intent[] intents;
+
+		/**
+		 * The index of the intent this activity was resolved for in {@link #intents}.
+		 */
+		final int intentIndex;
 
 		/**
 		 * The label for this item that's displayed to the user.
@@ -829,31 +1956,142 @@ public class ActivityChooserModel extends DataSetObservable {
 		public final String label;
 
 		/**
-		 * The icon for this item that's displayed to the user.
+		 * The icon for this item that's displayed to the user, null while
+		 * released on memory pressure.
+		 */
+		volatile Drawable icon;
+
+		/**
+		 * The resource of the icon in the package of the activity, 0 if none.
 		 */
-		public final Drawable icon;
+		private final int iconResource;
 
 		/**
 		 * Weight of the activity. Useful for sorting.
 		 */
 		public float weight;
 
+		/**
+		 * The collation key of {@link #label}, null if no collator is set.
+		 */
+		CollationKey collationKey;
+
+		/**
+		 * The rank of {@link #label} among the labels of the activities.
+		 */
+		int tieRank;
+
 		/**
 		 * Creates a new instance.
 		 *
 		 * @param resolveInfo activity {@link ResolveInfo}.
+		 * @param intent The intent the activity was resolved for.
 		 */
 		public ActivityResolveInfo(ResolveInfo resolveInfo, Intent intent) {
-			this.resolveInfo = resolveInfo;
-			this.intent = intent;
+			this(resolveInfo, 0);
+			this.intents = new Intent[] { intent };
+		}
+
+		/**
+		 * Creates a new instance. Only the names, label and icon are kept of
+		 * the {@link ResolveInfo}; the intents are set when the activity is
+		 * published with its snapshot.
+		 *
+		 * @param resolveInfo activity {@link ResolveInfo}.
+		 * @param intentIndex The index of the intent in the intents the
+		 *        model was set to.
+		 */
+		ActivityResolveInfo(ResolveInfo resolveInfo, int intentIndex) {
+			this.intentIndex = intentIndex;
+			this.componentName = new ComponentName(resolveInfo.activityInfo.packageName.intern(),
+					resolveInfo.activityInfo.name.intern());
 			PackageManager pm = mContext.getPackageManager();
 			this.label = resolveInfo.loadLabel(pm).toString();
-			this.icon = resolveInfo.loadIcon(pm);
+			this.iconResource = resolveInfo.getIconResource();
+			this.icon = rasterizeIcon(resolveInfo.loadIcon(pm));
+		}
+
+		/**
+		 * Gets the icon for this item that's displayed to the user. It is
+		 * loaded again if it was released on memory pressure.
+		 *
+		 * @return The icon.
+		 */
+		public Drawable getIcon() {
+			Drawable icon = this.icon;
+			if (icon == null) {
+				icon = rasterizeIcon(loadIcon());
+				this.icon = icon;
+			}
+			return icon;
+		}
+
+		private Drawable loadIcon() {
+			PackageManager pm = mContext.getPackageManager();
+			if (iconResource != 0) {
+				Drawable icon = pm.getDrawable(componentName.getPackageName(), iconResource, null);
+				if (icon != null) {
+					return icon;
+				}
+			}
+			try {
+				return pm.getActivityIcon(componentName);
+			}
+			catch (NameNotFoundException e) {
+				// The package was removed since the activity was resolved.
+				return pm.getDefaultActivityIcon();
+			}
+		}
+
+		/**
+		 * Gets the intent this activity was resolved for.
+		 *
+		 * @return The intent, or null if the activity was not published yet.
+		 */
+		public Intent getIntent() {
+			synchronized (mInstanceLock) {
+				return intents != null ? intents[intentIndex] : null;
+			}
+		}
+
+		/**
+		 * Gets the package name of the activity.
+		 *
+		 * @return The package name.
+		 */
+		public String getPackageName() {
+			return componentName.getPackageName();
+		}
+
+		/**
+		 * Gets the class name of the activity.
+		 *
+		 * @return The class name.
+		 */
+		public String getClassName() {
+			return componentName.getClassName();
+		}
+
+		/**
+		 * Creates a drawable for displaying the icon of this activity in a view.
+		 * It shares the bitmap of {@link #getIcon()} but has its own bounds and
+		 * state, which is what views that set the bounds of their drawables
+		 * need.
+		 *
+		 * @return The new drawable.
+		 */
+		public Drawable newIcon() {
+			Drawable icon = getIcon();
+			Drawable.ConstantState state = icon.getConstantState();
+			if (state == null) {
+				return icon;
+			}
+			return state.newDrawable(mContext.getResources()).mutate();
 		}
 
 		@Override
 		public int hashCode() {
-			return 31 + Float.floatToIntBits(weight);
+			return componentName.hashCode();
 		}
 
 		@Override
@@ -868,34 +2106,35 @@ public class ActivityChooserModel extends DataSetObservable {
 				return false;
 			}
 			ActivityResolveInfo other = (ActivityResolveInfo) obj;
-			if (Float.floatToIntBits(weight) != Float.floatToIntBits(other.weight)) {
-				return false;
-			}
-			return true;
+			return componentName.equals(other.componentName);
 		}
 
 		public int compareTo(ActivityResolveInfo another) {
-			int weightDiff = Float.floatToIntBits(another.weight) - Float.floatToIntBits(weight);
-			if (weightDiff == 0) {
-				return label.compareTo(another.label);
+			final int weightOrder = Float.compare(another.weight, weight);
+			if (weightOrder == 0) {
+				return LABEL_ORDER.compare(this, another);
 			}
-			return weightDiff;
+			return weightOrder;
+		}
+
+		void updateCollationKey(Collator collator) {
+			collationKey = collator != null ? collator.getCollationKey(label) : null;
 		}
 
 		@Override
 		public String toString() {
 			StringBuilder builder = new StringBuilder();
 			builder.append("[");
-			builder.append("resolveInfo:").append(resolveInfo.toString());
+			builder.append("component:").append(componentName.flattenToShortString());
 			builder.append("; weight:").append(new BigDecimal(weight));
 			builder.append("]");
 			return builder.toString();
 		}
 
 		public boolean isContainedIn(List<ActivityResolveInfo> list) {
-			String thisPackageName = resolveInfo.activityInfo.packageName;
+			String thisPackageName = getPackageName();
 			for (ActivityResolveInfo other : list) {
-				if (thisPackageName.equals(other.resolveInfo.activityInfo.packageName)) {
+				if (thisPackageName.equals(other.getPackageName())) {
 					return true;
 				}
 			}
@@ -912,6 +2151,12 @@ public class ActivityChooserModel extends DataSetObservable {
 		private final Map<String, ActivityResolveInfo> mPackageNameToActivityMap =
 				new HashMap<String, ActivityResolveInfo>();
 
+		/**
+		 * Scratch arrays for sorting, grown as needed.
+		 */
+		private long[] mSortKeys = new long[0];
+		private ActivityResolveInfo[] mActivitiesByRank = new ActivityResolveInfo[0];
+
 		public void sort(List<ActivityResolveInfo> activities,
 				List<HistoricalRecord> historicalRecords) {
 			Map<String, ActivityResolveInfo> packageNameToActivityMap =
@@ -922,7 +2167,7 @@ public class ActivityChooserModel extends DataSetObservable {
 			for (int i = 0; i < activityCount; i++) {
 				ActivityResolveInfo activity = activities.get(i);
 				activity.weight = 0.0f;
-				String packageName = activity.resolveInfo.activityInfo.packageName;
+				String packageName = activity.getPackageName();
 				packageNameToActivityMap.put(packageName, activity);
 			}
 
@@ -938,7 +2183,25 @@ public class ActivityChooserModel extends DataSetObservable {
 				}
 			}
 
-			Collections.sort(activities);
+			// Sort primitive keys made of the weight and the label rank, which
+			// orders like ActivityResolveInfo#compareTo() without calling it.
+			rankTiesLocked(activities);
+			if (mSortKeys.length < activityCount) {
+				mSortKeys = new long[activityCount];
+				mActivitiesByRank = new ActivityResolveInfo[activityCount];
+			}
+			final long[] sortKeys = mSortKeys;
+			final ActivityResolveInfo[] activitiesByRank = mActivitiesByRank;
+			for (int i = 0; i < activityCount; i++) {
+				ActivityResolveInfo activity = activities.get(i);
+				activitiesByRank[activity.tieRank] = activity;
+				sortKeys[i] = sortKey(activity.weight, activity.tieRank);
+			}
+			Arrays.sort(sortKeys, 0, activityCount);
+			for (int i = 0; i < activityCount; i++) {
+				activities.set(i, activitiesByRank[(int) sortKeys[i]]);
+			}
+			Arrays.fill(activitiesByRank, 0, activityCount, null);
 
 			if (DEBUG) {
 				for (int i = 0; i < activityCount; i++) {
@@ -949,191 +2212,178 @@ public class ActivityChooserModel extends DataSetObservable {
 	}
 
 	/**
-	 * Command for reading the historical records from a file off the UI thread.
+	 * Builds a key that orders by descending weight, then by ascending rank.
+	 * The weight bits are flipped such that the keys of negative weights
+	 * order like the weights themselves.
+	 */
+	private static long sortKey(float weight, int tieRank) {
+		int weightBits = Float.floatToIntBits(weight);
+		weightBits ^= (weightBits >> 31) & 0x7fffffff;
+		return ((long) ~weightBits << 32) | tieRank;
+	}
+
+	/**
+	 * Command for reading the historical records from the store off the UI thread.
 	 */
 	private final class HistoryLoader implements Runnable {
 
 		public void run() {
-			FileInputStream fis = null;
+			List<HistoricalRecord> readRecords;
 			try {
-				fis = mContext.openFileInput(mHistoryFileName);
+				readRecords = mHistoryStore.readHistoricalRecords();
 			}
-			catch (FileNotFoundException fnfe) {
-				if (DEBUG) {
-					Log.i(LOG_TAG, "Could not open historical records file: " + mHistoryFileName);
-				}
+			catch (IOException ioe) {
+				Log.e(LOG_TAG, "Error reading historical records: " + mHistoryStore, ioe);
 				return;
 			}
-			try {
-				XmlPullParser parser = Xml.newPullParser();
-				parser.setInput(fis, null);
 
-				int type = XmlPullParser.START_DOCUMENT;
-				while (type != XmlPullParser.END_DOCUMENT && type != XmlPullParser.START_TAG) {
-					type = parser.next();
+			synchronized (mInstanceLock) {
+				Set<HistoricalRecord> uniqueShareRecords =
+						new LinkedHashSet<HistoricalRecord>(readRecords);
+
+				// Make sure no duplicates. Example: Read a file with
+				// one record, add one record, persist the two records,
+				// add a record, read the persisted records - the
+				// read two records should not be added again.
+				List<HistoricalRecord> historicalRecords = mHistoricalRecords;
+				final int historicalRecordsCount = historicalRecords.size();
+				for (int i = historicalRecordsCount - 1; i >= 0; i--) {
+					HistoricalRecord historicalRecord = historicalRecords.get(i);
+					uniqueShareRecords.add(historicalRecord);
 				}
 
-				if (!TAG_HISTORICAL_RECORDS.equals(parser.getName())) {
-					throw new XmlPullParserException("Share records file does not start with "
-							+ TAG_HISTORICAL_RECORDS + " tag.");
+				if (historicalRecords.size() == uniqueShareRecords.size()) {
+					return;
 				}
 
-				List<HistoricalRecord> readRecords = new ArrayList<HistoricalRecord>();
+				// Make sure the oldest records go to the end.
+				historicalRecords.clear();
+				historicalRecords.addAll(uniqueShareRecords);
 
-				while (true) {
-					type = parser.next();
-					if (type == XmlPullParser.END_DOCUMENT) {
-						break;
-					}
-					if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-						continue;
-					}
-					String nodeName = parser.getName();
-					if (!TAG_HISTORICAL_RECORD.equals(nodeName)) {
-						throw new XmlPullParserException("Share records file not well-formed.");
-					}
-
-					String activity = parser.getAttributeValue(null, ATTRIBUTE_ACTIVITY);
-					final long time =
-							Long.parseLong(parser.getAttributeValue(null, ATTRIBUTE_TIME));
-					final float weight =
-							Float.parseFloat(parser.getAttributeValue(null, ATTRIBUTE_WEIGHT));
-
-					HistoricalRecord readRecord = new HistoricalRecord(activity, time,
-							weight);
-					readRecords.add(readRecord);
-
-					if (DEBUG) {
-						Log.i(LOG_TAG, "Read " + readRecord.toString());
-					}
-				}
-
-				if (DEBUG) {
-					Log.i(LOG_TAG, "Read " + readRecords.size() + " historical records.");
-				}
-
-				synchronized (mInstanceLock) {
-					Set<HistoricalRecord> uniqueShareRecords =
-							new LinkedHashSet<HistoricalRecord>(readRecords);
-
-					// Make sure no duplicates. Example: Read a file with
-					// one record, add one record, persist the two records,
-					// add a record, read the persisted records - the
-					// read two records should not be added again.
-					List<HistoricalRecord> historicalRecords = mHistoricalRecords;
-					final int historicalRecordsCount = historicalRecords.size();
-					for (int i = historicalRecordsCount - 1; i >= 0; i--) {
-						HistoricalRecord historicalRecord = historicalRecords.get(i);
-						uniqueShareRecords.add(historicalRecord);
-					}
+				mHistoricalRecordsChanged = true;
 
-					if (historicalRecords.size() == uniqueShareRecords.size()) {
-						return;
+				// Do this on the client thread since the client may be on the UI
+				// thread, wait for data changes which happen during sorting, and
+				// perform UI modification based on the data change.
+				mHandler.post(new Runnable() {
+					public void run() {
+						pruneExcessiveHistoricalRecordsLocked();
+						sortActivities();
 					}
+				});
+			}
+		}
+	}
 
-					// Make sure the oldest records go to the end.
-					historicalRecords.clear();
-					historicalRecords.addAll(uniqueShareRecords);
+	/**
+	 * Command for persisting the historical records to the store off the UI thread.
+	 */
+	private final class HistoryPersister implements Runnable {
 
-					mHistoricalRecordsChanged = true;
+		public void run() {
+			List<HistoricalRecord> records = null;
 
-					// Do this on the client thread since the client may be on the UI
-					// thread, wait for data changes which happen during sorting, and
-					// perform UI modification based on the data change.
-					mHandler.post(new Runnable() {
-						public void run() {
-							pruneExcessiveHistoricalRecordsLocked();
-							sortActivities();
-						}
-					});
-				}
+			synchronized (mInstanceLock) {
+				records = new ArrayList<HistoricalRecord>(mHistoricalRecords);
 			}
-			catch (XmlPullParserException xppe) {
-				Log.e(LOG_TAG, "Error reading historical recrod file: " + mHistoryFileName, xppe);
+
+			try {
+				mHistoryStore.writeHistoricalRecords(records);
 			}
 			catch (IOException ioe) {
-				Log.e(LOG_TAG, "Error reading historical recrod file: " + mHistoryFileName, ioe);
-			}
-			finally {
-				if (fis != null) {
-					try {
-						fis.close();
-					}
-					catch (IOException ioe) {
-						/* ignore */
-					}
-				}
+				Log.e(LOG_TAG, "Error writing historical records: " + mHistoryStore, ioe);
 			}
 		}
 	}
 
 	/**
-	 * Command for persisting the historical records to a file off the UI thread.
+	 * Command for merging the records an {@link IncrementalHistoryStore} has
+	 * not returned yet off the UI thread.
 	 */
-	private final class HistoryPersister implements Runnable {
+	private final class IncrementalHistoryLoader implements Runnable {
 
 		public void run() {
-			FileOutputStream fos = null;
-			List<HistoricalRecord> records = null;
-
 			synchronized (mInstanceLock) {
-				records = new ArrayList<HistoricalRecord>(mHistoricalRecords);
+				mIncrementalReadScheduled = false;
 			}
 
+			List<HistoricalRecord> newRecords;
 			try {
-				fos = mContext.openFileOutput(mHistoryFileName, Context.MODE_PRIVATE);
+				newRecords = ((IncrementalHistoryStore) mHistoryStore).readNewHistoricalRecords();
 			}
-			catch (FileNotFoundException fnfe) {
-				Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, fnfe);
+			catch (IOException ioe) {
+				Log.e(LOG_TAG, "Error reading historical records: " + mHistoryStore, ioe);
 				return;
 			}
 
-			XmlSerializer serializer = Xml.newSerializer();
+			if (DEBUG) {
+				Log.i(LOG_TAG, "Merging " + newRecords.size() + " new historical records.");
+			}
 
-			try {
-				serializer.setOutput(fos, null);
-				serializer.startDocument("UTF-8", true);
-				serializer.startTag(null, TAG_HISTORICAL_RECORDS);
-
-				final int recordCount = records.size();
-				for (int i = 0; i < recordCount; i++) {
-					HistoricalRecord record = records.remove(0);
-					serializer.startTag(null, TAG_HISTORICAL_RECORD);
-					serializer.attribute(null, ATTRIBUTE_ACTIVITY, record.activity.flattenToString());
-					serializer.attribute(null, ATTRIBUTE_TIME, String.valueOf(record.time));
-					serializer.attribute(null, ATTRIBUTE_WEIGHT, String.valueOf(record.weight));
-					serializer.endTag(null, TAG_HISTORICAL_RECORD);
-					if (DEBUG) {
-						Log.i(LOG_TAG, "Wrote " + record.toString());
+			if (newRecords.isEmpty()) {
+				return;
+			}
+
+			synchronized (mInstanceLock) {
+				// The new records were chosen elsewhere, so there are no duplicates
+				// to weed out, just keep the history in choice order.
+				List<HistoricalRecord> historicalRecords = mHistoricalRecords;
+				final int newRecordCount = newRecords.size();
+				for (int i = 0; i < newRecordCount; i++) {
+					HistoricalRecord newRecord = newRecords.get(i);
+					int position = historicalRecords.size();
+					while (position > 0 && historicalRecords.get(position - 1).time > newRecord.time) {
+						position--;
 					}
+					historicalRecords.add(position, newRecord);
 				}
 
-				serializer.endTag(null, TAG_HISTORICAL_RECORDS);
-				serializer.endDocument();
+				// Do this on the client thread since the client may be on the UI
+				// thread, wait for data changes which happen during sorting, and
+				// perform UI modification based on the data change.
+				mHandler.post(new Runnable() {
+					public void run() {
+						synchronized (mInstanceLock) {
+							pruneExcessiveHistoricalRecordsLocked();
+							sortActivities();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Command for appending the records chosen since the last write to an
+	 * {@link IncrementalHistoryStore} off the UI thread.
+	 */
+	private final class IncrementalHistoryPersister implements Runnable {
 
-				if (DEBUG) {
-					Log.i(LOG_TAG, "Wrote " + recordCount + " historical records.");
+		public void run() {
+			List<HistoricalRecord> records = null;
+
+			synchronized (mInstanceLock) {
+				if (mUnpersistedHistoricalRecords.isEmpty()) {
+					return;
 				}
+				records = new ArrayList<HistoricalRecord>(mUnpersistedHistoricalRecords);
+				mUnpersistedHistoricalRecords.clear();
 			}
-			catch (IllegalArgumentException iae) {
-				Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, iae);
-			}
-			catch (IllegalStateException ise) {
-				Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, ise);
+
+			try {
+				((IncrementalHistoryStore) mHistoryStore).appendHistoricalRecords(records);
 			}
 			catch (IOException ioe) {
-				Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, ioe);
-			}
-			finally {
-				if (fos != null) {
-					try {
-						fos.close();
-					}
-					catch (IOException e) {
-						/* ignore */
-					}
+				Log.e(LOG_TAG, "Error writing historical records: " + mHistoryStore, ioe);
+				// Try again with the next write.
+				synchronized (mInstanceLock) {
+					mUnpersistedHistoricalRecords.addAll(0, records);
 				}
+				return;
 			}
+
+			// Pick up whatever other processes appended in the meantime.
+			new IncrementalHistoryLoader().run();
 		}
 	}
 }
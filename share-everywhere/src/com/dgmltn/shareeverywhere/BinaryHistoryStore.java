@@ -0,0 +1,319 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * A {@link HistoryStore} which keeps the records in a compact, append-only
+ * binary journal in an application private file.
+ * <p>
+ * Every component name is written to the journal once and referred to by a
+ * small numeric id afterwards, so a record costs a handful of bytes. Writing
+ * the history only appends the records chosen since the last write. The
+ * journal is compacted, i.e. rewritten with just the live sliding window,
+ * once it holds more than {@link #COMPACTION_FACTOR} times as many records
+ * as the window.
+ * </p>
+ */
+public class BinaryHistoryStore implements HistoryStore {
+
+	/**
+	 * Flag for selecting debug mode.
+	 */
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Tag used for logging.
+	 */
+	private static final String LOG_TAG = BinaryHistoryStore.class.getSimpleName();
+
+	/**
+	 * Magic number at the start of the journal, "SHJ1".
+	 */
+	private static final int JOURNAL_MAGIC = 0x53484a31;
+
+	/**
+	 * Entry defining the next component id.
+	 */
+	private static final int ENTRY_COMPONENT = 1;
+
+	/**
+	 * Entry holding a historical record.
+	 */
+	private static final int ENTRY_RECORD = 2;
+
+	/**
+	 * How much the journal may outgrow the live history before it is compacted.
+	 */
+	public static final int COMPACTION_FACTOR = 2;
+
+	/**
+	 * The extension of the journal file.
+	 */
+	private static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+	/**
+	 * Context for accessing the application private files.
+	 */
+	private final Context mContext;
+
+	/**
+	 * The name of the journal file.
+	 */
+	private final String mJournalFileName;
+
+	/**
+	 * Component ids that are defined in the journal.
+	 */
+	private final Map<String, Integer> mComponentIds = new HashMap<String, Integer>();
+
+	/**
+	 * The number of records in the journal, including pruned ones.
+	 */
+	private int mJournalRecordCount;
+
+	/**
+	 * The most recent record in the journal.
+	 */
+	private HistoricalRecord mLastJournaledRecord;
+
+	/**
+	 * Whether the journal on disk is known to match the in-memory state
+	 * above, in which case records can be appended to it.
+	 */
+	private boolean mJournalValid;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context Context for accessing files.
+	 * @param journalFileName The journal file. The ".journal" extension
+	 *        is appended if missing.
+	 */
+	public BinaryHistoryStore(Context context, String journalFileName) {
+		mContext = context.getApplicationContext();
+		if (!journalFileName.endsWith(JOURNAL_FILE_EXTENSION)) {
+			mJournalFileName = journalFileName + JOURNAL_FILE_EXTENSION;
+		}
+		else {
+			mJournalFileName = journalFileName;
+		}
+	}
+
+	public synchronized List<HistoricalRecord> readHistoricalRecords() throws IOException {
+		List<HistoricalRecord> readRecords = new ArrayList<HistoricalRecord>();
+		List<String> components = new ArrayList<String>();
+
+		mComponentIds.clear();
+		mJournalRecordCount = 0;
+		mLastJournaledRecord = null;
+		mJournalValid = false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(mJournalFileName)));
+		}
+		catch (FileNotFoundException fnfe) {
+			if (DEBUG) {
+				Log.i(LOG_TAG, "Could not open journal: " + mJournalFileName);
+			}
+			mJournalValid = true;
+			return readRecords;
+		}
+		try {
+			if (in.readInt() != JOURNAL_MAGIC) {
+				throw new IOException("Not a history journal: " + mJournalFileName);
+			}
+			while (true) {
+				final int entry = in.read();
+				if (entry == -1) {
+					break;
+				}
+				if (entry == ENTRY_COMPONENT) {
+					String component = in.readUTF();
+					mComponentIds.put(component, components.size());
+					components.add(component);
+				}
+				else if (entry == ENTRY_RECORD) {
+					final int id = readVarInt(in);
+					final long time = in.readLong();
+					final float weight = in.readFloat();
+					if (id >= components.size()) {
+						throw new IOException("Undefined component in journal: " + mJournalFileName);
+					}
+					HistoricalRecord readRecord = new HistoricalRecord(components.get(id), time, weight);
+					readRecords.add(readRecord);
+					mLastJournaledRecord = readRecord;
+					mJournalRecordCount++;
+				}
+				else {
+					throw new IOException("Corrupt history journal: " + mJournalFileName);
+				}
+			}
+			mJournalValid = true;
+		}
+		catch (EOFException eofe) {
+			// A write was interrupted. Keep what was read, the next write
+			// rewrites the journal and drops the partial entry.
+			Log.w(LOG_TAG, "Truncated history journal: " + mJournalFileName);
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (IOException ioe) {
+				/* ignore */
+			}
+		}
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Read " + readRecords.size() + " historical records.");
+		}
+
+		return readRecords;
+	}
+
+	public synchronized void writeHistoricalRecords(List<HistoricalRecord> records) throws IOException {
+		final int recordCount = records.size();
+
+		// Find the records chosen since the last write.
+		int firstNewRecord = -1;
+		if (mJournalValid) {
+			if (mLastJournaledRecord == null) {
+				firstNewRecord = 0;
+			}
+			else {
+				for (int i = recordCount - 1; i >= 0; i--) {
+					if (mLastJournaledRecord.equals(records.get(i))) {
+						firstNewRecord = i + 1;
+						break;
+					}
+				}
+			}
+		}
+
+		if (firstNewRecord < 0
+				|| mJournalRecordCount + recordCount - firstNewRecord > recordCount * COMPACTION_FACTOR) {
+			rewriteJournal(records);
+		}
+		else if (firstNewRecord < recordCount) {
+			appendToJournal(records, firstNewRecord);
+		}
+	}
+
+	/**
+	 * Appends records to the end of the journal.
+	 */
+	private void appendToJournal(List<HistoricalRecord> records, int start) throws IOException {
+		final boolean writeHeader = !mContext.getFileStreamPath(mJournalFileName).exists();
+		mJournalValid = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				mContext.openFileOutput(mJournalFileName, Context.MODE_APPEND)));
+		try {
+			if (writeHeader) {
+				out.writeInt(JOURNAL_MAGIC);
+			}
+			writeRecords(out, records, start);
+		}
+		finally {
+			out.close();
+		}
+		mJournalValid = true;
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Appended " + (records.size() - start) + " historical records.");
+		}
+	}
+
+	/**
+	 * Replaces the journal with one holding just the given records.
+	 */
+	private void rewriteJournal(List<HistoricalRecord> records) throws IOException {
+		mComponentIds.clear();
+		mJournalRecordCount = 0;
+		mLastJournaledRecord = null;
+		mJournalValid = false;
+
+		File journal = mContext.getFileStreamPath(mJournalFileName);
+		File tmp = new File(journal.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(JOURNAL_MAGIC);
+			writeRecords(out, records, 0);
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(journal)) {
+			throw new IOException("Error writing history journal: " + mJournalFileName);
+		}
+		mJournalValid = true;
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Compacted journal to " + records.size() + " historical records.");
+		}
+	}
+
+	private void writeRecords(DataOutputStream out, List<HistoricalRecord> records, int start)
+			throws IOException {
+		final int recordCount = records.size();
+		for (int i = start; i < recordCount; i++) {
+			HistoricalRecord record = records.get(i);
+			String component = record.activity.flattenToString();
+			Integer id = mComponentIds.get(component);
+			if (id == null) {
+				id = mComponentIds.size();
+				mComponentIds.put(component, id);
+				out.writeByte(ENTRY_COMPONENT);
+				out.writeUTF(component);
+			}
+			out.writeByte(ENTRY_RECORD);
+			writeVarInt(out, id);
+			out.writeLong(record.time);
+			out.writeFloat(record.weight);
+			mLastJournaledRecord = record;
+			mJournalRecordCount++;
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed component id in journal");
+	}
+
+	@Override
+	public String toString() {
+		return mJournalFileName;
+	}
+}
@@ -0,0 +1,43 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * Backing storage for the choice history of an {@link ActivityChooserModel}.
+ * <p>
+ * A model only ever calls a store from its single background executor, one
+ * call at a time, so implementations do not need to be prepared for concurrent
+ * reads and writes coming from the same model. A store is always read at least
+ * once before it is written to.
+ * </p>
+ *
+ * @see ActivityChooserModel#get(android.content.Context, String, HistoryStore)
+ * @see XmlHistoryStore
+ * @see BinaryHistoryStore
+ * @see SQLiteHistoryStore
+ * @see InMemoryHistoryStore
+ */
+public interface HistoryStore {
+
+	/**
+	 * Reads the persisted historical records.
+	 *
+	 * @return The records, oldest first. Never <code>null</code>, an empty
+	 *         list if nothing has been persisted yet.
+	 * @throws IOException If the backing storage could not be read.
+	 */
+	public List<HistoricalRecord> readHistoricalRecords() throws IOException;
+
+	/**
+	 * Persists the given historical records, replacing whatever the store
+	 * currently holds. The list is the full sliding window of past choices,
+	 * oldest first, so records missing from it have been pruned.
+	 *
+	 * @param records The records to persist.
+	 * @throws IOException If the backing storage could not be written.
+	 */
+	public void writeHistoricalRecords(List<HistoricalRecord> records) throws IOException;
+}
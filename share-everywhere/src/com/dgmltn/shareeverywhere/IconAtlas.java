@@ -0,0 +1,299 @@
+package com.dgmltn.shareeverywhere;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+/**
+ * Packs equally sized icons into a few large bitmaps, the pages, so that a
+ * list drawing many icons binds a few textures instead of one per icon.
+ * <p>
+ * Icons are added on demand and keep their slot until they are released
+ * with {@link #retainOnly(Set)}; freed slots are reused by the next icons
+ * added, so a change of the displayed icons only redraws the slots of the
+ * new ones. Each view gets its own lightweight drawable of a slot, since
+ * views set the bounds, alpha and callback of their drawables. The drawables
+ * of a released icon draw nothing, so views they are still bound to never
+ * show the icon that took over the slot. Must be used on a single thread.
+ * </p>
+ */
+final class IconAtlas {
+
+	/**
+	 * Tag used for logging.
+	 */
+	private static final String LOG_TAG = IconAtlas.class.getSimpleName();
+
+	/**
+	 * Number of icons per row and column of a page.
+	 */
+	private static final int PAGE_SLOTS_PER_SIDE = 8;
+
+	private static final int PAGE_SLOT_COUNT = PAGE_SLOTS_PER_SIDE * PAGE_SLOTS_PER_SIDE;
+
+	/**
+	 * The size of the icons in pixels.
+	 */
+	private final int mIconSize;
+
+	/**
+	 * Distance between slots; icons are one pixel apart so that filtering
+	 * never samples a neighbor.
+	 */
+	private final int mSlotPitch;
+
+	private final List<Bitmap> mPages = new ArrayList<Bitmap>();
+
+	/**
+	 * The slots in use, by icon.
+	 */
+	private final Map<Drawable, Slot> mSlots = new HashMap<Drawable, Slot>();
+
+	/**
+	 * Slots freed by released icons.
+	 */
+	private final List<Integer> mFreeSlots = new ArrayList<Integer>();
+
+	/**
+	 * The number of slots ever handed out.
+	 */
+	private int mUsedSlotCount;
+
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private final Paint mClearPaint = new Paint();
+
+	private final Rect mTempRect = new Rect();
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param iconSize The size of the icons in pixels.
+	 */
+	IconAtlas(int iconSize) {
+		mIconSize = iconSize;
+		mSlotPitch = iconSize + 1;
+		mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+	}
+
+	/**
+	 * Creates a drawable showing an icon from the atlas, adding the icon if
+	 * needed. Each call returns a new drawable for a single view, all of them
+	 * drawing the same slot.
+	 *
+	 * @param icon The icon.
+	 * @return The drawable, or the icon itself if the atlas is out of memory.
+	 */
+	Drawable getDrawable(Drawable icon) {
+		Slot slot = mSlots.get(icon);
+		if (slot == null) {
+			slot = addIcon(icon);
+			if (slot == null) {
+				return icon;
+			}
+		}
+		return slot.newDrawable();
+	}
+
+	/**
+	 * Releases the slots of all icons but the given ones.
+	 *
+	 * @param icons The icons to keep.
+	 */
+	void retainOnly(Set<Drawable> icons) {
+		Iterator<Map.Entry<Drawable, Slot>> iterator = mSlots.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Drawable, Slot> entry = iterator.next();
+			if (!icons.contains(entry.getKey())) {
+				Slot slot = entry.getValue();
+				slot.release();
+				mFreeSlots.add(slot.mIndex);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Releases all pages.
+	 */
+	void clear() {
+		for (Slot slot : mSlots.values()) {
+			slot.release();
+		}
+		mPages.clear();
+		mSlots.clear();
+		mFreeSlots.clear();
+		mUsedSlotCount = 0;
+	}
+
+	private Slot addIcon(Drawable icon) {
+		int slot;
+		if (!mFreeSlots.isEmpty()) {
+			slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+		}
+		else {
+			slot = mUsedSlotCount;
+			if (slot / PAGE_SLOT_COUNT >= mPages.size()) {
+				final int pageSize = PAGE_SLOTS_PER_SIDE * mSlotPitch;
+				try {
+					mPages.add(Bitmap.createBitmap(pageSize, pageSize, Bitmap.Config.ARGB_8888));
+				}
+				catch (OutOfMemoryError oome) {
+					Log.w(LOG_TAG, "Could not allocate icon atlas page", oome);
+					return null;
+				}
+			}
+			mUsedSlotCount++;
+		}
+
+		Canvas canvas = new Canvas(mPages.get(slot / PAGE_SLOT_COUNT));
+		Rect slotRect = mTempRect;
+		getSlotRect(slot, slotRect);
+		canvas.drawRect(slotRect, mClearPaint);
+		if (icon instanceof BitmapDrawable && ((BitmapDrawable) icon).getBitmap() != null) {
+			canvas.drawBitmap(((BitmapDrawable) icon).getBitmap(), null, slotRect, mPaint);
+		}
+		else {
+			Rect oldBounds = icon.copyBounds();
+			icon.setBounds(slotRect);
+			icon.draw(canvas);
+			icon.setBounds(oldBounds);
+		}
+
+		Slot atlasSlot = new Slot(mPages.get(slot / PAGE_SLOT_COUNT), slot);
+		mSlots.put(icon, atlasSlot);
+		return atlasSlot;
+	}
+
+	private void getSlotRect(int slot, Rect outRect) {
+		final int pageSlot = slot % PAGE_SLOT_COUNT;
+		final int left = (pageSlot % PAGE_SLOTS_PER_SIDE) * mSlotPitch;
+		final int top = (pageSlot / PAGE_SLOTS_PER_SIDE) * mSlotPitch;
+		outRect.set(left, top, left + mIconSize, top + mIconSize);
+	}
+
+	/**
+	 * An icon's slot of an atlas page, shared by the drawables showing it.
+	 */
+	private final class Slot {
+
+		final Bitmap mPage;
+
+		final int mIndex;
+
+		final Rect mSource = new Rect();
+
+		/**
+		 * Whether the slot was released and may show another icon by now.
+		 */
+		boolean mReleased;
+
+		/**
+		 * The drawables handed out, to redraw their views once released.
+		 */
+		private final List<WeakReference<AtlasDrawable>> mDrawables =
+				new ArrayList<WeakReference<AtlasDrawable>>();
+
+		Slot(Bitmap page, int index) {
+			mPage = page;
+			mIndex = index;
+			getSlotRect(index, mSource);
+		}
+
+		AtlasDrawable newDrawable() {
+			Iterator<WeakReference<AtlasDrawable>> iterator = mDrawables.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().get() == null) {
+					iterator.remove();
+				}
+			}
+			AtlasDrawable drawable = new AtlasDrawable(this);
+			mDrawables.add(new WeakReference<AtlasDrawable>(drawable));
+			return drawable;
+		}
+
+		void release() {
+			mReleased = true;
+			for (WeakReference<AtlasDrawable> reference : mDrawables) {
+				AtlasDrawable drawable = reference.get();
+				if (drawable != null) {
+					drawable.invalidateSelf();
+				}
+			}
+			mDrawables.clear();
+		}
+	}
+
+	/**
+	 * Draws one slot of an atlas page in a single view.
+	 */
+	private final class AtlasDrawable extends Drawable {
+
+		private final Slot mSlot;
+
+		private int mAlpha = 255;
+
+		private ColorFilter mColorFilter;
+
+		AtlasDrawable(Slot slot) {
+			mSlot = slot;
+		}
+
+		@Override
+		public void draw(Canvas canvas) {
+			final Slot slot = mSlot;
+			if (slot.mReleased) {
+				return;
+			}
+			final Paint paint = mPaint;
+			paint.setAlpha(mAlpha);
+			paint.setColorFilter(mColorFilter);
+			canvas.drawBitmap(slot.mPage, slot.mSource, getBounds(), paint);
+			paint.setAlpha(255);
+			paint.setColorFilter(null);
+		}
+
+		@Override
+		public void setAlpha(int alpha) {
+			mAlpha = alpha;
+			invalidateSelf();
+		}
+
+		@Override
+		public void setColorFilter(ColorFilter cf) {
+			mColorFilter = cf;
+			invalidateSelf();
+		}
+
+		@Override
+		public int getOpacity() {
+			return PixelFormat.TRANSLUCENT;
+		}
+
+		@Override
+		public int getIntrinsicWidth() {
+			return mIconSize;
+		}
+
+		@Override
+		public int getIntrinsicHeight() {
+			return mIconSize;
+		}
+	}
+}
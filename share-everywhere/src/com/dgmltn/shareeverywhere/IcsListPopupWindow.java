@@ -29,6 +29,22 @@ import android.widget.PopupWindow;
  * A proxy between pre- and post-Honeycomb implementations of this class.
  */
 public class IcsListPopupWindow {
+
+	/**
+	 * An adapter whose rows all have the same height, so that the height of
+	 * the drop down can be computed without measuring the rows.
+	 */
+	public interface UniformHeightAdapter extends ListAdapter {
+
+		/**
+		 * Gets the height of every row.
+		 *
+		 * @return The height in pixels, or a negative value if the rows have
+		 *         to be measured after all.
+		 */
+		public int getUniformItemHeight();
+	}
+
 	/**
 	 * This value controls the length of time that the user
 	 * must leave a pointer down without scrolling to expand
@@ -49,6 +65,12 @@ public class IcsListPopupWindow {
 
 	private int mListSelectorResId;
 	private int mListDividerResId;
+	private Drawable mListDivider;
+
+	/**
+	 * Whether the drop down list is kept across dismiss/show cycles.
+	 */
+	private boolean mRetainDropDownList;
 
 	private int mListItemExpandMaximum = Integer.MAX_VALUE;
 
@@ -71,6 +93,23 @@ public class IcsListPopupWindow {
 
 	private Rect mTempRect = new Rect();
 
+	/**
+	 * Scratch objects for finding the available height.
+	 */
+	private final Rect mTempDisplayFrame = new Rect();
+	private final int[] mTempAnchorPos = new int[2];
+
+	/**
+	 * Empty background set when none is given, so that the popup can be dismissed
+	 * by touching outside of it.
+	 */
+	private Drawable mEmptyBackground;
+
+	/**
+	 * One view per item view type, recycled for measuring the drop down.
+	 */
+	private View[] mMeasureScrapViews;
+
 	private boolean mModal;
 
 	public static final int POSITION_PROMPT_ABOVE = 0;
@@ -110,6 +149,7 @@ public class IcsListPopupWindow {
 		if (mAdapter != null) {
 			adapter.registerDataSetObserver(mObserver);
 		}
+		mMeasureScrapViews = null;
 
 		if (mDropDownList != null) {
 			mDropDownList.setAdapter(mAdapter);
@@ -140,11 +180,33 @@ public class IcsListPopupWindow {
 	}
 
 	public void setListSelectorResource(int resId) {
-		mListSelectorResId = resId;
+		if (mListSelectorResId != resId) {
+			mListSelectorResId = resId;
+			if (mDropDownList != null) {
+				mDropDownList.setSelector(resId);
+			}
+		}
 	}
 
 	public void setListDividerResource(int resId) {
-		mListDividerResId = resId;
+		if (mListDividerResId != resId) {
+			mListDividerResId = resId;
+			mListDivider = null;
+			if (mDropDownList != null) {
+				mDropDownList.setDivider(getListDivider());
+			}
+		}
+	}
+
+	/**
+	 * Sets whether the drop down list, along with the views it recycles, is
+	 * kept when the popup is dismissed, so that showing the popup again
+	 * neither creates nor inflates views. Defaults to false.
+	 *
+	 * @param retain Whether to keep the list.
+	 */
+	public void setRetainDropDownList(boolean retain) {
+		mRetainDropDownList = retain;
 	}
 
 	public void setAnchorView(View anchor) {
@@ -173,6 +235,9 @@ public class IcsListPopupWindow {
 
 	public void setOnItemClickListener(AdapterView.OnItemClickListener clickListener) {
 		mItemClickListener = clickListener;
+		if (mDropDownList != null) {
+			mDropDownList.setOnItemClickListener(clickListener);
+		}
 	}
 
 	public void show() {
@@ -255,7 +320,10 @@ public class IcsListPopupWindow {
 
 			//http://stackoverflow.com/questions/3121232/android-popup-window-dismissal
 			if (mPopup.getBackground() == null) {
-				mPopup.setBackgroundDrawable(new BitmapDrawable());
+				if (mEmptyBackground == null) {
+					mEmptyBackground = new BitmapDrawable();
+				}
+				mPopup.setBackgroundDrawable(mEmptyBackground);
 			}
 
 			// use outside touchable to dismiss drop down when touching outside of it, so
@@ -277,6 +345,31 @@ public class IcsListPopupWindow {
 
 	public void dismiss() {
 		mPopup.dismiss();
+		mHandler.removeCallbacks(mResizePopupRunnable);
+		if (mRetainDropDownList && mDropDownList != null) {
+			// Start from the top next time, like a new list would.
+			mDropDownList.setSelectionFromTop(0, 0);
+			return;
+		}
+		removeDropDownList();
+	}
+
+	/**
+	 * Drops the drop down list and the views it recycles, even if the list
+	 * is retained, e.g. to free memory. Has no effect while the popup is
+	 * showing.
+	 */
+	public void releaseDropDownList() {
+		if (isShowing()) {
+			return;
+		}
+		mMeasureScrapViews = null;
+		if (mDropDownList != null) {
+			removeDropDownList();
+		}
+	}
+
+	private void removeDropDownList() {
 		if (mPromptView != null) {
 			final ViewParent parent = mPromptView.getParent();
 			if (parent instanceof ViewGroup) {
@@ -286,7 +379,6 @@ public class IcsListPopupWindow {
 		}
 		mPopup.setContentView(null);
 		mDropDownList = null;
-		mHandler.removeCallbacks(mResizePopupRunnable);
 	}
 
 	public void setOnDismissListener(PopupWindow.OnDismissListener listener) {
@@ -336,13 +428,20 @@ public class IcsListPopupWindow {
 		return mDropDownList;
 	}
 
+	private Drawable getListDivider() {
+		if (mListDivider == null) {
+			mListDivider = mContext.getResources().getDrawable(mListDividerResId);
+		}
+		return mListDivider;
+	}
+
 	private int buildDropDown() {
 		ViewGroup dropDownView;
 		int otherHeights = 0;
 
 		if (mDropDownList == null) {
 			mDropDownList = new DropDownListView(mContext, !mModal);
-			mDropDownList.setDivider(mContext.getResources().getDrawable(mListDividerResId));
+			mDropDownList.setDivider(getListDivider());
 			mDropDownList.setSelector(mListSelectorResId);
 			mDropDownList.setAdapter(mAdapter);
 			mDropDownList.setOnItemClickListener(mItemClickListener);
@@ -460,10 +559,10 @@ public class IcsListPopupWindow {
 	}
 
 	private int getMaxAvailableHeight(View anchor, int yOffset, boolean ignoreBottomDecorations) {
-		final Rect displayFrame = new Rect();
+		final Rect displayFrame = mTempDisplayFrame;
 		anchor.getWindowVisibleDisplayFrame(displayFrame);
 
-		final int[] anchorPos = new int[2];
+		final int[] anchorPos = mTempAnchorPos;
 		anchor.getLocationOnScreen(anchorPos);
 
 		int bottomEdge = displayFrame.bottom;
@@ -506,8 +605,32 @@ public class IcsListPopupWindow {
 		// mItemCount - 1 since endPosition parameter is inclusive
 		endPosition = (endPosition == -1/*NO_POSITION*/) ? adapter.getCount() - 1 : endPosition;
 
+		if (adapter instanceof UniformHeightAdapter && disallowPartialChildPosition < 0) {
+			final int itemHeight = ((UniformHeightAdapter) adapter).getUniformItemHeight();
+			if (itemHeight >= 0) {
+				final int rowCount = Math.max(0, endPosition - startPosition + 1);
+				if (rowCount > 0) {
+					returnedHeight += rowCount * itemHeight;
+					// Count the divider for all but one child
+					returnedHeight += (startPosition > 0 ? rowCount : rowCount - 1) * dividerHeight;
+				}
+				return Math.min(returnedHeight, maxHeight);
+			}
+		}
+
+		final int viewTypeCount = adapter.getViewTypeCount();
+		if (mMeasureScrapViews == null || mMeasureScrapViews.length != viewTypeCount) {
+			mMeasureScrapViews = new View[viewTypeCount];
+		}
+		final View[] scrapViews = mMeasureScrapViews;
+
 		for (i = startPosition; i <= endPosition; ++i) {
-			child = mAdapter.getView(i, null, mDropDownList);
+			final int viewType = adapter.getItemViewType(i);
+			final boolean recycle = viewType >= 0 && viewType < viewTypeCount;
+			child = adapter.getView(i, recycle ? scrapViews[viewType] : null, mDropDownList);
+			if (recycle) {
+				scrapViews[viewType] = child;
+			}
 			if (mDropDownList.getCacheColorHint() != 0) {
 				child.setDrawingCacheBackgroundColor(mDropDownList.getCacheColorHint());
 			}
@@ -0,0 +1,37 @@
+package com.dgmltn.shareeverywhere;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * A {@link HistoryStore} that keeps the records in memory only. The history
+ * survives for the lifetime of the store instance, which makes it useful for
+ * tests and benchmarks that should not touch the file system.
+ */
+public class InMemoryHistoryStore implements HistoryStore {
+
+	private final List<HistoricalRecord> mRecords = new ArrayList<HistoricalRecord>();
+
+	public InMemoryHistoryStore() {
+	}
+
+	/**
+	 * Creates a new instance pre-populated with the given records.
+	 *
+	 * @param records The initial records, oldest first.
+	 */
+	public InMemoryHistoryStore(List<HistoricalRecord> records) {
+		mRecords.addAll(records);
+	}
+
+	public synchronized List<HistoricalRecord> readHistoricalRecords() {
+		return new ArrayList<HistoricalRecord>(mRecords);
+	}
+
+	public synchronized void writeHistoricalRecords(List<HistoricalRecord> records) {
+		mRecords.clear();
+		mRecords.addAll(records);
+	}
+}
@@ -0,0 +1,35 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * A {@link HistoryStore} that can be read and written incrementally. A model
+ * backed by such a store never rewrites the whole history: it appends the
+ * records chosen since the last write and merges only the records it has not
+ * seen yet, which may have been added by another process.
+ *
+ * @see SharedHistoryStore
+ */
+public interface IncrementalHistoryStore extends HistoryStore {
+
+	/**
+	 * Reads the records that were added to the store since the last call to
+	 * this method, not counting the records appended through this instance.
+	 * The first call returns every record in the store.
+	 *
+	 * @return The new records, oldest first. Never <code>null</code>.
+	 * @throws IOException If the backing storage could not be read.
+	 */
+	public List<HistoricalRecord> readNewHistoricalRecords() throws IOException;
+
+	/**
+	 * Appends records to the store.
+	 *
+	 * @param records The records to append, oldest first.
+	 * @throws IOException If the backing storage could not be written.
+	 */
+	public void appendHistoricalRecords(List<HistoricalRecord> records) throws IOException;
+}
@@ -0,0 +1,84 @@
+package com.dgmltn.shareeverywhere;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+import android.graphics.Typeface;
+import android.text.BoringLayout;
+import android.text.Layout;
+import android.text.TextPaint;
+
+/**
+ * Caches the single line layout width of labels for a text paint, so that
+ * a label is shaped once no matter how often the list is measured.
+ * <p>
+ * Labels that fit a {@link BoringLayout}, which is the common case for
+ * left-to-right application names, are measured with its metrics; others
+ * with {@link Layout#getDesiredWidth(CharSequence, TextPaint)}. The cache is
+ * dropped whenever the size, typeface or scale of the paint changes. Must
+ * be used on a single thread.
+ * </p>
+ */
+final class LabelLayoutCache {
+
+	private final HashMap<String, Float> mWidths = new HashMap<String, Float>();
+
+	/**
+	 * The paint properties the cached widths are valid for.
+	 */
+	private float mTextSize;
+	private float mTextScaleX;
+	private Typeface mTypeface;
+
+	/**
+	 * Gets the width of a label laid out on a single line.
+	 *
+	 * @param label The label.
+	 * @param paint The paint the label is drawn with.
+	 * @return The width in pixels.
+	 */
+	float getWidth(String label, TextPaint paint) {
+		if (paint.getTextSize() != mTextSize || paint.getTextScaleX() != mTextScaleX
+				|| paint.getTypeface() != mTypeface) {
+			mWidths.clear();
+			mTextSize = paint.getTextSize();
+			mTextScaleX = paint.getTextScaleX();
+			mTypeface = paint.getTypeface();
+		}
+
+		Float width = mWidths.get(label);
+		if (width == null) {
+			BoringLayout.Metrics metrics = BoringLayout.isBoring(label, paint);
+			if (metrics != null) {
+				width = (float) metrics.width;
+			}
+			else {
+				width = Layout.getDesiredWidth(label, paint);
+			}
+			mWidths.put(label, width);
+		}
+		return width;
+	}
+
+	/**
+	 * Drops the widths of all labels but the given ones.
+	 *
+	 * @param labels The labels to keep.
+	 */
+	void retainOnly(Set<String> labels) {
+		Iterator<String> iterator = mWidths.keySet().iterator();
+		while (iterator.hasNext()) {
+			if (!labels.contains(iterator.next())) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops the widths of all labels.
+	 */
+	void clear() {
+		mWidths.clear();
+	}
+}
@@ -0,0 +1,232 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * A {@link HistoryStore} backed by an SQLite database.
+ * <p>
+ * The store remembers the rows it last read or wrote, so a write only deletes
+ * the records pruned from the front of the history and inserts the records
+ * added to its end, in a single transaction. Only if the history changed
+ * otherwise, e.g. when records read elsewhere were merged into it, are all
+ * rows rewritten.
+ * </p>
+ */
+public class SQLiteHistoryStore implements HistoryStore {
+
+	/**
+	 * Flag for selecting debug mode.
+	 */
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Tag used for logging.
+	 */
+	private static final String LOG_TAG = SQLiteHistoryStore.class.getSimpleName();
+
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE_RECORDS = "records";
+
+	private static final String COLUMN_ID = "_id";
+	private static final String COLUMN_ACTIVITY = "activity";
+	private static final String COLUMN_TIME = "time";
+	private static final String COLUMN_WEIGHT = "weight";
+
+	private final DatabaseHelper mHelper;
+
+	private final String mDatabaseName;
+
+	/**
+	 * The records in the database as of the last read or write, oldest first,
+	 * null if unknown.
+	 */
+	private List<HistoricalRecord> mStoredRecords;
+
+	/**
+	 * The row ids of {@link #mStoredRecords}.
+	 */
+	private final List<Long> mStoredIds = new ArrayList<Long>();
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context Context for opening the database.
+	 * @param databaseName The name of the database file.
+	 */
+	public SQLiteHistoryStore(Context context, String databaseName) {
+		mDatabaseName = databaseName;
+		mHelper = new DatabaseHelper(context.getApplicationContext(), databaseName);
+	}
+
+	public synchronized List<HistoricalRecord> readHistoricalRecords() throws IOException {
+		List<HistoricalRecord> readRecords = new ArrayList<HistoricalRecord>();
+		mStoredRecords = null;
+		mStoredIds.clear();
+		Cursor cursor = null;
+		try {
+			cursor = mHelper.getReadableDatabase().query(TABLE_RECORDS,
+					new String[] { COLUMN_ID, COLUMN_ACTIVITY, COLUMN_TIME, COLUMN_WEIGHT },
+					null, null, null, null, COLUMN_ID);
+			while (cursor.moveToNext()) {
+				mStoredIds.add(cursor.getLong(0));
+				readRecords.add(new HistoricalRecord(cursor.getString(1), cursor.getLong(2),
+						cursor.getFloat(3)));
+			}
+		}
+		catch (SQLException sqle) {
+			mStoredIds.clear();
+			throw asIOException(sqle);
+		}
+		finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		mStoredRecords = new ArrayList<HistoricalRecord>(readRecords);
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Read " + readRecords.size() + " historical records.");
+		}
+
+		return readRecords;
+	}
+
+	public synchronized void writeHistoricalRecords(List<HistoricalRecord> records)
+			throws IOException {
+		final int keptCount = countKeptRecords(records);
+		List<Long> ids = new ArrayList<Long>(records.size());
+		try {
+			SQLiteDatabase db = mHelper.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				if (keptCount < 0) {
+					db.delete(TABLE_RECORDS, null, null);
+				}
+				else {
+					// Row ids grow with the records, so the pruned ones come first.
+					final int prunedCount = mStoredRecords.size() - keptCount;
+					if (prunedCount > 0) {
+						db.delete(TABLE_RECORDS, COLUMN_ID + " <= ?",
+								new String[] { String.valueOf(mStoredIds.get(prunedCount - 1)) });
+					}
+					ids.addAll(mStoredIds.subList(prunedCount, mStoredIds.size()));
+				}
+
+				SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_RECORDS
+						+ " (" + COLUMN_ACTIVITY + ", " + COLUMN_TIME + ", " + COLUMN_WEIGHT
+						+ ") VALUES (?, ?, ?)");
+				try {
+					final int recordCount = records.size();
+					for (int i = Math.max(keptCount, 0); i < recordCount; i++) {
+						HistoricalRecord record = records.get(i);
+						insert.bindString(1, record.activity.flattenToString());
+						insert.bindLong(2, record.time);
+						insert.bindDouble(3, record.weight);
+						ids.add(insert.executeInsert());
+					}
+				}
+				finally {
+					insert.close();
+				}
+
+				db.setTransactionSuccessful();
+			}
+			finally {
+				db.endTransaction();
+			}
+		}
+		catch (SQLException sqle) {
+			// The rows are not known anymore, so the next write rewrites them all.
+			mStoredRecords = null;
+			mStoredIds.clear();
+			throw asIOException(sqle);
+		}
+		mStoredRecords = new ArrayList<HistoricalRecord>(records);
+		mStoredIds.clear();
+		mStoredIds.addAll(ids);
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Wrote " + (records.size() - Math.max(keptCount, 0))
+					+ " historical records.");
+		}
+	}
+
+	/**
+	 * Gets how many of the stored records the given history starts with, i.e.
+	 * how many of them are kept if only records pruned from the front of the
+	 * history are deleted.
+	 *
+	 * @return The count, or -1 if the history changed otherwise.
+	 */
+	private int countKeptRecords(List<HistoricalRecord> records) {
+		final List<HistoricalRecord> storedRecords = mStoredRecords;
+		if (storedRecords == null) {
+			return -1;
+		}
+		final int storedCount = storedRecords.size();
+		if (records.isEmpty()) {
+			return 0;
+		}
+		int start = storedRecords.indexOf(records.get(0));
+		if (start < 0) {
+			// None of the stored records is kept.
+			start = storedCount;
+		}
+		final int keptCount = storedCount - start;
+		if (keptCount > records.size()) {
+			return -1;
+		}
+		for (int i = 0; i < keptCount; i++) {
+			if (!storedRecords.get(start + i).equals(records.get(i))) {
+				return -1;
+			}
+		}
+		return keptCount;
+	}
+
+	private IOException asIOException(SQLException sqle) {
+		IOException ioe = new IOException("Error accessing history database: " + mDatabaseName);
+		ioe.initCause(sqle);
+		return ioe;
+	}
+
+	@Override
+	public String toString() {
+		return mDatabaseName;
+	}
+
+	private static final class DatabaseHelper extends SQLiteOpenHelper {
+
+		public DatabaseHelper(Context context, String name) {
+			super(context, name, null, DATABASE_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			db.execSQL("CREATE TABLE " + TABLE_RECORDS + " ("
+					+ COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+					+ COLUMN_ACTIVITY + " TEXT NOT NULL, "
+					+ COLUMN_TIME + " INTEGER NOT NULL, "
+					+ COLUMN_WEIGHT + " REAL NOT NULL)");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_RECORDS);
+			onCreate(db);
+		}
+	}
+}
@@ -10,6 +10,7 @@ import android.view.SubMenu;
 import android.view.View;
 
 import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityResolveInfo;
+import com.dgmltn.shareeverywhere.ActivityChooserModel.IntentSupplier;
 import com.dgmltn.shareeverywhere.ShareView.OnShareTargetSelectedListener;
 
 public class ShareActionProvider extends ActionProvider {
@@ -56,7 +57,7 @@ public class ShareActionProvider extends ActionProvider {
 		for (int i = 0; i < collapsedActivityCount; i++) {
 			ActivityResolveInfo activity = dataModel.getActivity(i);
 			subMenu.add(0, i, i, activity.label)
-					.setIcon(activity.icon)
+					.setIcon(activity.newIcon())
 					.setOnMenuItemClickListener(mShareView.mCallbacks);
 		}
 
@@ -67,7 +68,7 @@ public class ShareActionProvider extends ActionProvider {
 			for (int i = 0; i < expandedActivityCount; i++) {
 				ActivityResolveInfo activity = dataModel.getActivity(i);
 				expandedSubMenu.add(0, i, i, activity.label)
-						.setIcon(activity.icon)
+						.setIcon(activity.newIcon())
 						.setOnMenuItemClickListener(mShareView.mCallbacks);
 			}
 		}
@@ -83,6 +84,17 @@ public class ShareActionProvider extends ActionProvider {
 		mShareView.setShareIntent(intents);
 	}
 
+	/**
+	 * Set the template intent(s) and the intent supplier for this ShareActionProvider.
+	 * @param supplier
+	 * @param templates
+	 *
+	 * @see ShareView#setShareIntent(IntentSupplier, Intent...)
+	 */
+	public void setShareIntent(IntentSupplier supplier, Intent... templates) {
+		mShareView.setShareIntent(supplier, templates);
+	}
+
 	/**
 	 * Sets the OnShareTargetSelectedListener for this ShareActionProvider.
 	 * @param listener
@@ -0,0 +1,237 @@
+package com.dgmltn.shareeverywhere;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.database.DataSetObserver;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityResolveInfo;
+
+/**
+ * State shared by all {@link ShareRowView}s of a window: the styled
+ * resources they draw, a single observer per model which invalidates the
+ * attached rows, and a single {@link ShareView} that shows the popup for
+ * whichever row asks for it.
+ * <p>
+ * A host lives as long as one of its rows is attached to the window.
+ * </p>
+ */
+final class SharePopupHost {
+
+	/**
+	 * The hosts by the root view of their window.
+	 */
+	private static final Map<View, SharePopupHost> sHosts = new HashMap<View, SharePopupHost>();
+
+	private final View mRootView;
+
+	private final Context mContext;
+
+	/**
+	 * The rows attached to the window.
+	 */
+	private final List<ShareRowView> mRows = new ArrayList<ShareRowView>();
+
+	/**
+	 * The models of the attached rows, along with how many rows use them.
+	 */
+	private final Map<ActivityChooserModel, Integer> mModelUseCounts =
+			new HashMap<ActivityChooserModel, Integer>();
+
+	/**
+	 * Styled resources, resolved once per window.
+	 */
+	private final Drawable mOverflowDrawable;
+	private final Drawable mButtonBackground;
+	private final boolean mDisplayDefaultActivityButton;
+
+	/**
+	 * Drawables for the icons of the models, by icon. The rows set their
+	 * bounds before each draw, so they are not shared with other views.
+	 */
+	private final Map<Drawable, Drawable> mActivityIcons = new HashMap<Drawable, Drawable>();
+
+	/**
+	 * The view showing the popup, created when first needed.
+	 */
+	private ShareView mShareView;
+
+	/**
+	 * Observer for the models of all rows.
+	 */
+	private final DataSetObserver mModelDataSetObserver = new DataSetObserver() {
+
+		@Override
+		public void onChanged() {
+			super.onChanged();
+			mActivityIcons.clear();
+			invalidateRows();
+		}
+
+		@Override
+		public void onInvalidated() {
+			super.onInvalidated();
+			// The model released its icons; the popup is rebuilt when next shown.
+			if (mShareView != null && !mShareView.isShowingPopup()) {
+				mShareView = null;
+			}
+			mActivityIcons.clear();
+			invalidateRows();
+		}
+	};
+
+	private SharePopupHost(View rootView) {
+		mRootView = rootView;
+		mContext = rootView.getContext();
+
+		TypedArray a = mContext.obtainStyledAttributes(null, R.styleable.ShareView, R.attr.shareViewStyle, 0);
+		mOverflowDrawable = a.getDrawable(R.styleable.ShareView_sv_buttonDrawable);
+		mButtonBackground = a.getDrawable(R.styleable.ShareView_sv_buttonBackground);
+		mDisplayDefaultActivityButton = a.getBoolean(R.styleable.ShareView_sv_favoriteDisplayed, true);
+		a.recycle();
+	}
+
+	/**
+	 * Attaches a row to the host of its window, creating the host if needed.
+	 *
+	 * @param row A row that was just attached to a window.
+	 * @return The host.
+	 */
+	static SharePopupHost attach(ShareRowView row) {
+		View rootView = row.getRootView();
+		SharePopupHost host = sHosts.get(rootView);
+		if (host == null) {
+			host = new SharePopupHost(rootView);
+			sHosts.put(rootView, host);
+		}
+		host.mRows.add(row);
+		host.useModel(row.getActivityChooserModel());
+		return host;
+	}
+
+	/**
+	 * Detaches a row from this host. The host is released with its last row.
+	 *
+	 * @param row A row that is being detached from its window.
+	 */
+	void detach(ShareRowView row) {
+		mRows.remove(row);
+		releaseModel(row.getActivityChooserModel());
+		if (mRows.isEmpty()) {
+			if (mShareView != null) {
+				mShareView.dismissPopup();
+				mShareView = null;
+			}
+			sHosts.remove(mRootView);
+		}
+	}
+
+	/**
+	 * Called when an attached row switches models.
+	 */
+	void onModelChanged(ActivityChooserModel oldDataModel, ActivityChooserModel dataModel) {
+		releaseModel(oldDataModel);
+		useModel(dataModel);
+	}
+
+	private void useModel(ActivityChooserModel dataModel) {
+		if (dataModel == null) {
+			return;
+		}
+		Integer useCount = mModelUseCounts.get(dataModel);
+		if (useCount == null) {
+			try {
+				dataModel.registerObserver(mModelDataSetObserver);
+			}
+			catch (IllegalStateException e) {
+				// Related to #557.
+			}
+			useCount = 0;
+		}
+		mModelUseCounts.put(dataModel, useCount + 1);
+	}
+
+	private void releaseModel(ActivityChooserModel dataModel) {
+		if (dataModel == null) {
+			return;
+		}
+		Integer useCount = mModelUseCounts.get(dataModel);
+		if (useCount == null) {
+			return;
+		}
+		if (useCount > 1) {
+			mModelUseCounts.put(dataModel, useCount - 1);
+			return;
+		}
+		mModelUseCounts.remove(dataModel);
+		try {
+			dataModel.unregisterObserver(mModelDataSetObserver);
+		}
+		catch (IllegalStateException e) {
+			//Oh, well... fixes issue #557
+		}
+	}
+
+	private void invalidateRows() {
+		final int rowCount = mRows.size();
+		for (int i = 0; i < rowCount; i++) {
+			mRows.get(i).onModelDataChanged();
+		}
+	}
+
+	/**
+	 * Shows the popup for a row.
+	 *
+	 * @param row The row to anchor the popup to.
+	 * @param selectingDefaultActivity Whether the popup is for choosing the
+	 *        default activity rather than launching one.
+	 */
+	void showPopup(ShareRowView row, boolean selectingDefaultActivity) {
+		ActivityChooserModel dataModel = row.getActivityChooserModel();
+		if (mShareView == null) {
+			mShareView = new ShareView(mContext);
+		}
+		else {
+			mShareView.dismissPopup();
+		}
+		if (mShareView.getActivityChooserModel() != dataModel) {
+			mShareView.setActivityChooserModel(dataModel);
+		}
+		mShareView.showPopupForAnchor(row, selectingDefaultActivity, row.getShareIntents(),
+				row.getIntentSupplier());
+	}
+
+	/**
+	 * Gets the drawable the rows draw the icon of an activity with.
+	 *
+	 * @param activity The activity.
+	 * @return A drawable owned by this host.
+	 */
+	Drawable getActivityIcon(ActivityResolveInfo activity) {
+		Drawable icon = activity.getIcon();
+		Drawable hostIcon = mActivityIcons.get(icon);
+		if (hostIcon == null) {
+			hostIcon = activity.newIcon();
+			mActivityIcons.put(icon, hostIcon);
+		}
+		return hostIcon;
+	}
+
+	Drawable getOverflowDrawable() {
+		return mOverflowDrawable;
+	}
+
+	Drawable getButtonBackground() {
+		return mButtonBackground;
+	}
+
+	boolean isDefaultActivityButtonDisplayed() {
+		return mDisplayDefaultActivityButton;
+	}
+}
@@ -0,0 +1,338 @@
+package com.dgmltn.shareeverywhere;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityChooserModelClient;
+import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityResolveInfo;
+import com.dgmltn.shareeverywhere.ActivityChooserModel.IntentSupplier;
+
+/**
+ * A lightweight variant of {@link ShareView} for the rows of a list.
+ * <p>
+ * The view draws the overflow button and the default activity button
+ * itself instead of inflating a layout, and shares its styled resources,
+ * its model observer and the popup listing the activities with the other
+ * rows of its window. Tapping the overflow button shows the shared popup
+ * anchored to the row, tapping the default activity button launches the
+ * default activity and long pressing it shows the popup for changing the
+ * default activity.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> By default all rows share one model. The intents
+ * set with {@link #setShareIntent(Intent...)} are kept by the row and
+ * launched when an activity is chosen from it; the shared model only
+ * resolves them if they are not equivalent to its current intents (see
+ * {@link Intent#filterEquals(Intent)}). Rows sharing a model should
+ * therefore share the same kind of intents, e.g. all <code>text/plain</code>
+ * sends, and only differ in their extras. Give rows sharing different kinds
+ * of content their own models with
+ * {@link #setActivityChooserModel(ActivityChooserModel)}.
+ * </p>
+ */
+public class ShareRowView extends View implements ActivityChooserModelClient {
+
+	private ActivityChooserModel mDataModel;
+
+	/**
+	 * The intents of this row, launched instead of those of the shared model,
+	 * null if not set.
+	 */
+	private Intent[] mIntents;
+
+	/**
+	 * Builds the intent of this row for the chosen activity, may be null.
+	 */
+	private IntentSupplier mIntentSupplier;
+
+	/**
+	 * The host shared with the other rows of the window, while attached.
+	 */
+	private SharePopupHost mHost;
+
+	private final int mButtonWidth;
+	private final int mButtonHeight;
+	private final int mButtonPaddingHorizontal;
+	private final int mButtonPaddingVertical;
+	private final int mMinHeight;
+
+	/**
+	 * Whether the default activity button is shown, as of the last measure.
+	 */
+	private boolean mShowsDefaultActivity;
+
+	/**
+	 * Where the last touch went down, to tell the buttons apart on click.
+	 */
+	private float mTouchX = -1;
+
+	private final Rect mTempBounds = new Rect();
+
+	private final Rect mTempOldBounds = new Rect();
+
+	/**
+	 * Create a new instance.
+	 *
+	 * @param context The application environment.
+	 */
+	public ShareRowView(Context context) {
+		this(context, null);
+	}
+
+	/**
+	 * Create a new instance.
+	 *
+	 * @param context The application environment.
+	 * @param attrs A collection of attributes.
+	 */
+	public ShareRowView(Context context, AttributeSet attrs) {
+		this(context, attrs, 0);
+	}
+
+	/**
+	 * Create a new instance.
+	 *
+	 * @param context The application environment.
+	 * @param attrs A collection of attributes.
+	 * @param defStyle The default style to apply to this view.
+	 */
+	public ShareRowView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+
+		Resources resources = context.getResources();
+		mButtonWidth = resources.getDimensionPixelSize(R.dimen.sv__action_button_width);
+		mButtonHeight = resources.getDimensionPixelSize(R.dimen.sv__action_button_height);
+		mButtonPaddingHorizontal = resources.getDimensionPixelSize(R.dimen.sv__action_button_padding_horizontal);
+		mButtonPaddingVertical = resources.getDimensionPixelSize(R.dimen.sv__action_button_padding_vertical);
+		mMinHeight = resources.getDimensionPixelSize(R.dimen.sv__preferred_height);
+
+		setClickable(true);
+		setLongClickable(true);
+		setFocusable(true);
+
+		mDataModel = ActivityChooserModel.get(context, ShareView.DEFAULT_SHARE_HISTORY_FILE_NAME);
+		mShowsDefaultActivity = computeShowsDefaultActivity();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setActivityChooserModel(ActivityChooserModel dataModel) {
+		if (mDataModel == dataModel) {
+			return;
+		}
+		ActivityChooserModel oldDataModel = mDataModel;
+		mDataModel = dataModel;
+		if (dataModel != null && mIntents != null) {
+			dataModel.setIntentUnlessEquivalent(mIntents);
+		}
+		if (mHost != null) {
+			mHost.onModelChanged(oldDataModel, dataModel);
+		}
+		onModelDataChanged();
+	}
+
+	public ActivityChooserModel getActivityChooserModel() {
+		return mDataModel;
+	}
+
+	/**
+	 * Set the intent(s) for this row. They are kept by the row, see the note
+	 * on this class.
+	 * @param intents
+	 *
+	 * @see ShareView#setShareIntent(Intent...)
+	 */
+	public void setShareIntent(Intent... intents) {
+		setShareIntent(null, intents);
+	}
+
+	/**
+	 * Set lightweight template intent(s) for this row, along with a
+	 * supplier that builds the full intent only once a share target has
+	 * been chosen.
+	 * @param supplier
+	 * @param templates
+	 *
+	 * @see ShareView#setShareIntent(IntentSupplier, Intent...)
+	 */
+	public void setShareIntent(IntentSupplier supplier, Intent... templates) {
+		mIntents = templates;
+		mIntentSupplier = supplier;
+		if (mDataModel != null) {
+			mDataModel.setIntentUnlessEquivalent(templates);
+		}
+	}
+
+	/**
+	 * Gets the intents of this row, null to launch those of the model.
+	 */
+	Intent[] getShareIntents() {
+		return mIntents;
+	}
+
+	IntentSupplier getIntentSupplier() {
+		return mIntentSupplier;
+	}
+
+	/**
+	 * Called by the host when the model data changed.
+	 */
+	void onModelDataChanged() {
+		if (mShowsDefaultActivity != computeShowsDefaultActivity()) {
+			requestLayout();
+		}
+		invalidate();
+	}
+
+	private boolean computeShowsDefaultActivity() {
+		if (mDataModel == null || (mHost != null && !mHost.isDefaultActivityButtonDisplayed())) {
+			return false;
+		}
+		return mDataModel.getActivityCount() > 0 && mDataModel.getHistorySize() > 0;
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		mHost = SharePopupHost.attach(this);
+		onModelDataChanged();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (mHost != null) {
+			mHost.detach(this);
+			mHost = null;
+		}
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		mShowsDefaultActivity = computeShowsDefaultActivity();
+		final int buttonCount = mShowsDefaultActivity ? 2 : 1;
+		final int width = getPaddingLeft() + getPaddingRight() + buttonCount * mButtonWidth;
+		final int height = getPaddingTop() + getPaddingBottom() + Math.max(mButtonHeight, mMinHeight);
+		setMeasuredDimension(resolveSize(width, widthMeasureSpec), resolveSize(height, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (mHost == null) {
+			return;
+		}
+
+		final int left = getPaddingLeft();
+		final int top = getPaddingTop();
+		final int bottom = getHeight() - getPaddingBottom();
+
+		drawButton(canvas, mHost.getOverflowDrawable(), left, top, bottom, isPressedButton(false));
+		if (mShowsDefaultActivity) {
+			ActivityResolveInfo defaultActivity = mDataModel.getDefaultActivity();
+			if (defaultActivity != null) {
+				drawButton(canvas, mHost.getActivityIcon(defaultActivity), left + mButtonWidth, top, bottom,
+						isPressedButton(true));
+			}
+		}
+	}
+
+	private void drawButton(Canvas canvas, Drawable icon, int left, int top, int bottom,
+			boolean pressed) {
+		final int right = left + mButtonWidth;
+		if (pressed) {
+			// The background is shared by all rows, so its state is set for each draw.
+			Drawable background = mHost.getButtonBackground();
+			if (background != null) {
+				background.setState(getDrawableState());
+				background.setBounds(left, top, right, bottom);
+				background.draw(canvas);
+			}
+		}
+		if (icon == null) {
+			return;
+		}
+
+		// Center the icon, scaled to fit like the image of a ShareView button.
+		final int availableWidth = mButtonWidth - 2 * mButtonPaddingHorizontal;
+		final int availableHeight = Math.min(mButtonHeight, bottom - top) - 2 * mButtonPaddingVertical;
+		int iconWidth = icon.getIntrinsicWidth();
+		int iconHeight = icon.getIntrinsicHeight();
+		if (iconWidth <= 0 || iconHeight <= 0) {
+			iconWidth = availableWidth;
+			iconHeight = availableHeight;
+		}
+		final float scale = Math.min((float) availableWidth / iconWidth, (float) availableHeight / iconHeight);
+		final int width = Math.round(iconWidth * scale);
+		final int height = Math.round(iconHeight * scale);
+		final int iconLeft = left + (mButtonWidth - width) / 2;
+		final int iconTop = top + (bottom - top - height) / 2;
+		mTempBounds.set(iconLeft, iconTop, iconLeft + width, iconTop + height);
+
+		// The icons belong to the host, which draws them for one row at a time.
+		// An icon without constant state is the model's own, so its bounds
+		// are put back.
+		icon.copyBounds(mTempOldBounds);
+		icon.setBounds(mTempBounds);
+		icon.draw(canvas);
+		icon.setBounds(mTempOldBounds);
+	}
+
+	private boolean isPressedButton(boolean defaultActivityButton) {
+		return isPressed() && mTouchX >= 0 && isOverDefaultActivityButton() == defaultActivityButton;
+	}
+
+	private boolean isOverDefaultActivityButton() {
+		return mShowsDefaultActivity && mTouchX >= getPaddingLeft() + mButtonWidth;
+	}
+
+	@Override
+	protected void drawableStateChanged() {
+		super.drawableStateChanged();
+		invalidate();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_DOWN) {
+			mTouchX = event.getX();
+		}
+		return super.onTouchEvent(event);
+	}
+
+	@Override
+	public boolean performClick() {
+		final boolean handled = super.performClick();
+		if (mHost == null || mDataModel == null) {
+			return handled;
+		}
+		if (isOverDefaultActivityButton()) {
+			ShareView.launchDefaultActivity(getContext(), mDataModel, mIntents, mIntentSupplier);
+		}
+		else {
+			mHost.showPopup(this, false);
+		}
+		mTouchX = -1;
+		return true;
+	}
+
+	@Override
+	public boolean performLongClick() {
+		if (mHost != null && isOverDefaultActivityButton()) {
+			if (mDataModel.getActivityCount() > 0) {
+				mHost.showPopup(this, true);
+			}
+			mTouchX = -1;
+			return true;
+		}
+		return super.performLongClick();
+	}
+}
@@ -16,6 +16,8 @@
 
 package com.dgmltn.shareeverywhere;
 
+import java.util.HashSet;
+
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
@@ -23,9 +25,13 @@ import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.database.DataSetObserver;
+import android.graphics.Color;
 import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -42,6 +48,7 @@ import android.widget.TextView;
 
 import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityChooserModelClient;
 import com.dgmltn.shareeverywhere.ActivityChooserModel.ActivityResolveInfo;
+import com.dgmltn.shareeverywhere.ActivityChooserModel.IntentSupplier;
 
 /**
  * This class is a view for choosing an activity for handling a given {@link Intent}.
@@ -169,6 +176,7 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		@Override
 		public void onChanged() {
 			super.onChanged();
+			mSeenSnapshotVersion = mAdapter.getDataModel().getSnapshotVersion();
 			mAdapter.notifyDataSetChanged();
 		}
 
@@ -176,6 +184,17 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		public void onInvalidated() {
 			super.onInvalidated();
 			mAdapter.notifyDataSetInvalidated();
+			// The model released its icons, so let go of what holds on to them.
+			mAdapter.releaseCaches();
+			if (mListPopupWindow != null) {
+				mListPopupWindow.releaseDropDownList();
+			}
+			// The button image shares the bitmap of the released icon.
+			mShownDefaultActivityIcon = null;
+			mDefaultActivityButtonImage.setImageDrawable(null);
+			if (getWindowVisibility() == VISIBLE) {
+				updateAppearance();
+			}
 		}
 	};
 
@@ -183,11 +202,12 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		@Override
 		public void onGlobalLayout() {
 			if (isShowingPopup()) {
-				if (!isShown()) {
+				if (!mPopupAnchor.isShown()) {
 					getListPopupWindow().dismiss();
 				}
-				else {
+				else if (isPopupLayoutDirty(true)) {
 					getListPopupWindow().show();
+					recordPopupLayout();
 				}
 			}
 		}
@@ -203,6 +223,44 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	 */
 	private PopupWindow.OnDismissListener mOnDismissListener;
 
+	/**
+	 * The anchor geometry, display frame and adapter version the showing
+	 * popup was laid out for.
+	 */
+	private final int[] mPopupAnchorLocation = new int[2];
+	private final Rect mPopupDisplayFrame = new Rect();
+	private int mPopupAnchorWidth;
+	private int mPopupAnchorHeight;
+	private int mPopupAdapterVersion;
+
+	/**
+	 * Scratch objects for checking the popup layout.
+	 */
+	private final int[] mTempLocation = new int[2];
+	private final Rect mTempDisplayFrame = new Rect();
+
+	/**
+	 * The view the popup is anchored to. This view itself, unless the popup
+	 * is shown on behalf of a {@link ShareRowView}.
+	 */
+	private View mPopupAnchor = this;
+
+	/**
+	 * The intents of the row the popup is shown for, launched instead of
+	 * those of the model. Null to launch the intents of the model.
+	 */
+	private Intent[] mLaunchIntents;
+
+	/**
+	 * The intent supplier of the row the popup is shown for.
+	 */
+	private IntentSupplier mLaunchIntentSupplier;
+
+	/**
+	 * Whether the model is observed only for a popup shown for another anchor.
+	 */
+	private boolean mObservingForAnchor;
+
 	/**
 	 * Flag whether a default activity currently being selected.
 	 */
@@ -213,6 +271,11 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	 */
 	private int mInitialActivityCount = DEFAULT_INITIAL_ACTIVITY_COUNT;
 
+	/**
+	 * The version of the model this view last refreshed from.
+	 */
+	private int mSeenSnapshotVersion;
+
 	/**
 	 * Flag whether this view is attached to a window.
 	 */
@@ -223,6 +286,14 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	 */
 	private int mDefaultActionButtonContentDescription;
 
+	/**
+	 * What the buttons currently show, so that they are only updated on change.
+	 */
+	private Drawable mShownDefaultActivityIcon;
+	private CharSequence mShownDefaultActivityLabel;
+	private int mShownContentDescriptionResId;
+	private boolean mContentBackgroundShown = true;
+
 	private final Context mContext;
 
 	/**
@@ -324,6 +395,9 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	 * {@inheritDoc}
 	 */
 	public void setActivityChooserModel(ActivityChooserModel dataModel) {
+		if (dataModel != null) {
+			mSeenSnapshotVersion = dataModel.getSnapshotVersion();
+		}
 		mAdapter.setDataModel(dataModel);
 		if (isShowingPopup()) {
 			dismissPopup();
@@ -345,6 +419,50 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		}
 	}
 
+	/**
+	 * Set lightweight template intent(s) for this ShareView, along with a
+	 * supplier that builds the full intent only once a share target has
+	 * been chosen.
+	 * @param supplier
+	 * @param templates
+	 *
+	 * @see ActivityChooserModel#setIntent(IntentSupplier, Intent...)
+	 */
+	public void setShareIntent(IntentSupplier supplier, Intent... templates) {
+		if (mAdapter != null && mAdapter.mDataModel != null) {
+			mAdapter.mDataModel.setIntent(supplier, templates);
+		}
+	}
+
+	/**
+	 * Sets how long the intents passed to {@link #setShareIntent(Intent...)}
+	 * are held back before they are resolved. Use this when the shared content
+	 * changes rapidly, e.g. on every keystroke: the share targets are only
+	 * resolved and ranked again once the content has not changed for the
+	 * given delay, but a chosen target always receives the latest content.
+	 *
+	 * @param delayMillis The delay in milliseconds, 0 to resolve right away.
+	 *
+	 * @see ActivityChooserModel#setIntentDebounceDelay(long)
+	 */
+	public void setShareIntentDebounceDelay(long delayMillis) {
+		if (mAdapter != null && mAdapter.mDataModel != null) {
+			mAdapter.mDataModel.setIntentDebounceDelay(delayMillis);
+		}
+	}
+
+	/**
+	 * Sets whether the icons in the popup are drawn from a few shared atlas
+	 * bitmaps rather than from a bitmap per activity, which saves texture
+	 * uploads and switches when scrolling through many activities with
+	 * hardware acceleration. Defaults to false.
+	 *
+	 * @param enabled Whether to use an icon atlas.
+	 */
+	public void setIconAtlasEnabled(boolean enabled) {
+		mAdapter.setIconAtlasEnabled(enabled);
+	}
+
 	/**
 	 * Sets the background for the button that expands the activity
 	 * overflow list.
@@ -400,6 +518,8 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 			return false;
 		}
 		mIsSelectingDefaultActivity = false;
+		mLaunchIntents = null;
+		mLaunchIntentSupplier = null;
 		showPopupUnchecked(mInitialActivityCount);
 		return true;
 	}
@@ -414,8 +534,6 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 			throw new IllegalStateException("No data model. Did you call #setDataModel?");
 		}
 
-		getViewTreeObserver().addOnGlobalLayoutListener(mOnGlobalLayoutListener);
-
 		final boolean defaultActivityButtonShown =
 				mDefaultActivityButton.getVisibility() == VISIBLE;
 
@@ -443,7 +561,89 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 			popupWindow.setContentWidth(contentWidth);
 			popupWindow.show();
 			popupWindow.getListView().setContentDescription(mContext.getString(R.string.Choose_an_application));
+			recordPopupLayout();
+			mPopupAnchor.getViewTreeObserver().addOnGlobalLayoutListener(mOnGlobalLayoutListener);
+		}
+	}
+
+	/**
+	 * Shows the popup anchored to another view, typically a {@link ShareRowView}
+	 * sharing this view as its popup host. This view need not be attached to
+	 * a window; it observes its model only while the popup is showing.
+	 *
+	 * @param anchor The view to anchor the popup to.
+	 * @param selectingDefaultActivity Whether the popup is for choosing the
+	 *        default activity rather than launching one.
+	 * @param intents The intents to launch, equivalent to those of the model,
+	 *        or null to launch those of the model.
+	 * @param supplier The supplier building the launched intent, may be null.
+	 */
+	void showPopupForAnchor(View anchor, boolean selectingDefaultActivity, Intent[] intents,
+			IntentSupplier supplier) {
+		dismissPopup();
+		mPopupAnchor = anchor;
+		getListPopupWindow().setAnchorView(anchor);
+		ActivityChooserModel dataModel = mAdapter.getDataModel();
+		if (!mIsAttachedToWindow && !mObservingForAnchor && dataModel != null) {
+			try {
+				dataModel.registerObserver(mModelDataSetObserver);
+				mObservingForAnchor = true;
+			}
+			catch (IllegalStateException e) {
+				// Related to #557.
+			}
+		}
+		updateAppearance();
+		mIsSelectingDefaultActivity = selectingDefaultActivity;
+		mLaunchIntents = intents;
+		mLaunchIntentSupplier = supplier;
+		showPopupUnchecked(mInitialActivityCount);
+	}
+
+	private void removeOnGlobalLayoutListener() {
+		ViewTreeObserver viewTreeObserver = mPopupAnchor.getViewTreeObserver();
+		if (viewTreeObserver.isAlive()) {
+			viewTreeObserver.removeGlobalOnLayoutListener(mOnGlobalLayoutListener);
+		}
+	}
+
+	/**
+	 * Gets whether the anchor geometry, the available height or the adapter
+	 * content changed since the popup was last laid out. The display frame,
+	 * which takes a call to the window manager, is only queried if asked for
+	 * and everything else is unchanged.
+	 *
+	 * @param checkDisplayFrame Whether to check the available height.
+	 */
+	private boolean isPopupLayoutDirty(boolean checkDisplayFrame) {
+		final View anchor = mPopupAnchor;
+		if (mAdapter.getVersion() != mPopupAdapterVersion
+				|| anchor.getWidth() != mPopupAnchorWidth
+				|| anchor.getHeight() != mPopupAnchorHeight) {
+			return true;
+		}
+		anchor.getLocationOnScreen(mTempLocation);
+		if (mTempLocation[0] != mPopupAnchorLocation[0]
+				|| mTempLocation[1] != mPopupAnchorLocation[1]) {
+			return true;
+		}
+		if (!checkDisplayFrame) {
+			return false;
 		}
+		anchor.getWindowVisibleDisplayFrame(mTempDisplayFrame);
+		return !mTempDisplayFrame.equals(mPopupDisplayFrame);
+	}
+
+	/**
+	 * Remembers the state the popup was laid out for.
+	 */
+	private void recordPopupLayout() {
+		final View anchor = mPopupAnchor;
+		anchor.getLocationOnScreen(mPopupAnchorLocation);
+		anchor.getWindowVisibleDisplayFrame(mPopupDisplayFrame);
+		mPopupAnchorWidth = anchor.getWidth();
+		mPopupAnchorHeight = anchor.getHeight();
+		mPopupAdapterVersion = mAdapter.getVersion();
 	}
 
 	/**
@@ -454,10 +654,7 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	public boolean dismissPopup() {
 		if (isShowingPopup()) {
 			getListPopupWindow().dismiss();
-			ViewTreeObserver viewTreeObserver = getViewTreeObserver();
-			if (viewTreeObserver.isAlive()) {
-				viewTreeObserver.removeGlobalOnLayoutListener(mOnGlobalLayoutListener);
-			}
+			removeOnGlobalLayoutListener();
 		}
 		return true;
 	}
@@ -478,7 +675,12 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		if (dataModel != null) {
 			try {
 				dataModel.registerObserver(mModelDataSetObserver);
-				dataModel.notifyChanged();
+				// Only refresh this view, and only if the model changed while detached.
+				final int snapshotVersion = dataModel.getSnapshotVersion();
+				if (snapshotVersion != mSeenSnapshotVersion) {
+					mSeenSnapshotVersion = snapshotVersion;
+					mAdapter.notifyDataSetChanged();
+				}
 			}
 			catch (IllegalStateException e) {
 				// Related to #557.
@@ -499,13 +701,20 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 				//Oh, well... fixes issue #557
 			}
 		}
-		ViewTreeObserver viewTreeObserver = getViewTreeObserver();
-		if (viewTreeObserver.isAlive()) {
-			viewTreeObserver.removeGlobalOnLayoutListener(mOnGlobalLayoutListener);
-		}
+		removeOnGlobalLayoutListener();
 		mIsAttachedToWindow = false;
 	}
 
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		// Load the icon again if it was released while hidden.
+		if (visibility == VISIBLE && mShownDefaultActivityIcon == null
+				&& mDefaultActivityButton.getVisibility() == VISIBLE) {
+			updateAppearance();
+		}
+	}
+
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		View child = mActivityChooserContent;
@@ -524,7 +733,13 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
 		mActivityChooserContent.layout(0, 0, right - left, bottom - top);
 		if (getListPopupWindow().isShowing()) {
-			showPopupUnchecked(mAdapter.getMaxActivityCount());
+			// The global layout listener, which runs after this pass, checks the
+			// display frame.
+			if (isPopupLayoutDirty(false)) {
+				showPopupUnchecked(mAdapter.getMaxActivityCount());
+				getListPopupWindow().show();
+				recordPopupLayout();
+			}
 		}
 		else {
 			dismissPopup();
@@ -575,13 +790,14 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		if (mListPopupWindow == null) {
 			mListPopupWindow = new IcsListPopupWindow(getContext());
 			mListPopupWindow.setAdapter(mAdapter);
-			mListPopupWindow.setAnchorView(ShareView.this);
+			mListPopupWindow.setAnchorView(mPopupAnchor);
 			mListPopupWindow.setModal(true);
 			mListPopupWindow.setOnItemClickListener(mCallbacks);
 			mListPopupWindow.setOnDismissListener(mCallbacks);
 			mListPopupWindow.setBackgroundResource(mPopupBackgroundResId);
 			mListPopupWindow.setListDividerResource(mPopupDividerResId);
 			mListPopupWindow.setListSelectorResource(mPopupSelectorResId);
+			mListPopupWindow.setRetainDropDownList(true);
 		}
 		return mListPopupWindow;
 	}
@@ -591,20 +807,27 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 	 */
 	private void updateAppearance() {
 		// Expand overflow button.
-		if (mAdapter.getCount() > 0) {
-			mExpandActivityOverflowButton.setEnabled(true);
-		}
-		else {
-			mExpandActivityOverflowButton.setEnabled(false);
+		final boolean expandEnabled = mAdapter.getCount() > 0;
+		if (mExpandActivityOverflowButton.isEnabled() != expandEnabled) {
+			mExpandActivityOverflowButton.setEnabled(expandEnabled);
 		}
 		// Default activity button.
 		final int activityCount = mAdapter.getActivityCount();
 		final int historySize = mAdapter.getHistorySize();
 		if (activityCount > 0 && historySize > 0 && mDisplayDefaultActivityButton) {
-			mDefaultActivityButton.setVisibility(VISIBLE);
+			if (mDefaultActivityButton.getVisibility() != VISIBLE) {
+				mDefaultActivityButton.setVisibility(VISIBLE);
+			}
 			ActivityResolveInfo activity = mAdapter.getDefaultActivity();
-			mDefaultActivityButtonImage.setImageDrawable(activity.icon);
-			if (mDefaultActionButtonContentDescription != 0) {
+			if (activity.getIcon() != mShownDefaultActivityIcon) {
+				mShownDefaultActivityIcon = activity.getIcon();
+				mDefaultActivityButtonImage.setImageDrawable(activity.newIcon());
+			}
+			if (mDefaultActionButtonContentDescription != 0
+					&& (mDefaultActionButtonContentDescription != mShownContentDescriptionResId
+					|| !TextUtils.equals(activity.label, mShownDefaultActivityLabel))) {
+				mShownContentDescriptionResId = mDefaultActionButtonContentDescription;
+				mShownDefaultActivityLabel = activity.label;
 				String contentDescription = mContext.getString(
 						mDefaultActionButtonContentDescription, activity.label);
 				mDefaultActivityButton.setContentDescription(contentDescription);
@@ -614,19 +837,61 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 			// Work-around for #415.
 			mAdapter.setShowDefaultActivity(false, false);
 		}
-		else {
+		else if (mDefaultActivityButton.getVisibility() != GONE) {
 			mDefaultActivityButton.setVisibility(View.GONE);
 		}
 		// Activity chooser content.
-		if (mDefaultActivityButton.getVisibility() == VISIBLE) {
-			mActivityChooserContent.setBackgroundResource(mBackgroundResId);
+		final boolean showContentBackground = mDefaultActivityButton.getVisibility() == VISIBLE;
+		if (showContentBackground != mContentBackgroundShown) {
+			mContentBackgroundShown = showContentBackground;
+			if (showContentBackground) {
+				mActivityChooserContent.setBackgroundResource(mBackgroundResId);
+			}
+			else {
+				mActivityChooserContent.setBackgroundResource(0);
+				mActivityChooserContent.setPadding(0, 0, 0, 0);
+			}
 		}
-		else {
-			mActivityChooserContent.setBackgroundResource(0);
-			mActivityChooserContent.setPadding(0, 0, 0, 0);
+	}
+
+	/**
+	 * Launches the default activity of a model.
+	 *
+	 * @param context Context for starting the activity.
+	 * @param dataModel The model.
+	 * @param intents The intents to launch, equivalent to those of the model,
+	 *        or null to launch those of the model.
+	 * @param supplier The supplier building the launched intent, may be null.
+	 */
+	static void launchDefaultActivity(Context context, ActivityChooserModel dataModel,
+			Intent[] intents, IntentSupplier supplier) {
+		ActivityResolveInfo defaultActivity = dataModel.getDefaultActivity();
+		if (defaultActivity == null) {
+			return;
+		}
+		final int index = dataModel.getActivityIndex(defaultActivity);
+		Intent launchIntent = intents != null
+				? dataModel.chooseActivity(index, intents, supplier)
+				: dataModel.chooseActivity(index);
+		if (launchIntent != null) {
+			context.startActivity(launchIntent);
 		}
 	}
 
+	/**
+	 * Chooses an activity of the model, launching the intents of the row the
+	 * popup is shown for, if any.
+	 *
+	 * @param index The index of the activity.
+	 */
+	private Intent chooseActivity(int index) {
+		ActivityChooserModel dataModel = mAdapter.getDataModel();
+		if (mLaunchIntents != null) {
+			return dataModel.chooseActivity(index, mLaunchIntents, mLaunchIntentSupplier);
+		}
+		return dataModel.chooseActivity(index);
+	}
+
 	/**
 	 * Interface implementation to avoid publishing them in the APIs.
 	 */
@@ -654,7 +919,7 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 					// If the default target is not shown in the list, the first
 					// item in the model is default action => adjust index
 					position = mAdapter.getShowDefaultActivity() ? position : position + 1;
-					Intent launchIntent = mAdapter.mDataModel.chooseActivity(position);
+					Intent launchIntent = chooseActivity(position);
 					if (launchIntent != null) {
 						launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
 						mContext.startActivity(launchIntent);
@@ -674,7 +939,7 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		@Override
 		public boolean onMenuItemClick(MenuItem item) {
 			final int itemId = item.getItemId();
-			Intent launchIntent = mAdapter.mDataModel.chooseActivity(itemId);
+			Intent launchIntent = chooseActivity(itemId);
 			if (launchIntent != null) {
 				launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
 				mContext.startActivity(launchIntent);
@@ -687,15 +952,12 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 		public void onClick(View view) {
 			if (view == mDefaultActivityButton || view == mDefaultActivityButtonImage) {
 				dismissPopup();
-				ActivityResolveInfo defaultActivity = mAdapter.getDefaultActivity();
-				final int index = mAdapter.getDataModel().getActivityIndex(defaultActivity);
-				Intent launchIntent = mAdapter.getDataModel().chooseActivity(index);
-				if (launchIntent != null) {
-					mContext.startActivity(launchIntent);
-				}
+				launchDefaultActivity(mContext, mAdapter.getDataModel(), null, null);
 			}
 			else if (view == mExpandActivityOverflowButton || view == mExpandActivityOverflowButtonImage) {
 				mIsSelectingDefaultActivity = false;
+				mLaunchIntents = null;
+				mLaunchIntentSupplier = null;
 				showPopupUnchecked(mInitialActivityCount);
 			}
 			else {
@@ -720,6 +982,19 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 
 		// PopUpWindow.OnDismissListener#onDismiss
 		public void onDismiss() {
+			removeOnGlobalLayoutListener();
+			if (mObservingForAnchor) {
+				mObservingForAnchor = false;
+				ActivityChooserModel dataModel = mAdapter.getDataModel();
+				if (dataModel != null) {
+					try {
+						dataModel.unregisterObserver(mModelDataSetObserver);
+					}
+					catch (IllegalStateException e) {
+						// Related to #557.
+					}
+				}
+			}
 			notifyOnDismissListener();
 		}
 
@@ -741,10 +1016,38 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 
 	private static final boolean IS_HONEYCOMB = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
 
+	/**
+	 * Holds the child views of a row of the activity list along with what is
+	 * bound to them, so that a rebind only touches what changed.
+	 */
+	private static final class ViewHolder {
+
+		final int viewType;
+
+		final View itemView;
+
+		final TextView titleView;
+
+		CharSequence label;
+
+		Drawable icon;
+
+		IconAtlas iconAtlas;
+
+		boolean activated;
+
+		ViewHolder(int viewType, View itemView, TextView titleView) {
+			this.viewType = viewType;
+			this.itemView = itemView;
+			this.titleView = titleView;
+		}
+	}
+
 	/**
 	 * Adapter for backing the list of activities shown in the popup.
 	 */
-	private class ActivityChooserViewAdapter extends BaseAdapter {
+	private class ActivityChooserViewAdapter extends BaseAdapter
+			implements IcsListPopupWindow.UniformHeightAdapter {
 
 		public static final int MAX_ACTIVITY_COUNT_UNLIMITED = Integer.MAX_VALUE;
 
@@ -765,6 +1068,71 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 
 		private boolean mShowFooterView;
 
+		/**
+		 * The atlas holding the icons of the rows, null if disabled.
+		 */
+		private IconAtlas mIconAtlas;
+
+		/**
+		 * The model version the atlas last released the icons of gone activities for.
+		 */
+		private int mIconAtlasSnapshotVersion;
+
+		/**
+		 * The fixed height of the list item layout, shared by activities and the footer.
+		 */
+		private final int mItemHeight =
+				getResources().getDimensionPixelSize(R.dimen.sv__preferred_dropdown_item_height);
+
+		/**
+		 * The last measured content width, -1 if not measured yet.
+		 */
+		private int mContentWidth = -1;
+
+		/**
+		 * The state the content width was measured in.
+		 */
+		private int mContentWidthSnapshotVersion;
+		private boolean mContentWidthShowDefaultActivity;
+		private boolean mContentWidthShowFooterView;
+
+		/**
+		 * Label widths, kept across snapshots so that a new snapshot only
+		 * measures the labels that were not shown before.
+		 */
+		private final LabelLayoutCache mLabelLayouts = new LabelLayoutCache();
+
+		/**
+		 * Row metrics, measured for a font scale and theme.
+		 */
+		private TextPaint mLabelPaint;
+		private int mRowMinWidth;
+		private int mRowChromeWidth;
+		private int mFooterWidth;
+		private float mMetricsFontScale;
+		private Resources.Theme mMetricsTheme;
+
+		/**
+		 * Version of the adapter content, bumped on every change notification.
+		 */
+		private int mVersion;
+
+		@Override
+		public void notifyDataSetChanged() {
+			mVersion++;
+			super.notifyDataSetChanged();
+		}
+
+		@Override
+		public void notifyDataSetInvalidated() {
+			mVersion++;
+			super.notifyDataSetInvalidated();
+		}
+
+		public int getVersion() {
+			return mVersion;
+		}
+
 		public void setDataModel(ActivityChooserModel dataModel) {
 			ActivityChooserModel oldDataModel = mAdapter.getDataModel();
 			if (oldDataModel != null && isShown()) {
@@ -776,6 +1144,7 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 				}
 			}
 			mDataModel = dataModel;
+			mContentWidth = -1;
 			if (dataModel != null && isShown()) {
 				try {
 					dataModel.registerObserver(mModelDataSetObserver);
@@ -802,6 +1171,10 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 			return ITEM_VIEW_TYPE_COUNT;
 		}
 
+		public int getUniformItemHeight() {
+			return mItemHeight;
+		}
+
 		public int getCount() {
 			int count = 0;
 			int activityCount = mDataModel.getActivityCount();
@@ -836,75 +1209,184 @@ public class ShareView extends ViewGroup implements ActivityChooserModelClient {
 
 		public View getView(int position, View convertView, ViewGroup parent) {
 			final int itemViewType = getItemViewType(position);
+			ViewHolder holder = convertView != null ? (ViewHolder) convertView.getTag() : null;
+			if (holder == null || holder.viewType != itemViewType) {
+				holder = newViewHolder(itemViewType, parent);
+			}
+
 			switch (itemViewType) {
 
 			case ITEM_VIEW_TYPE_FOOTER:
-				if (convertView == null || convertView.getId() != ITEM_VIEW_TYPE_FOOTER) {
-					convertView = LayoutInflater.from(mContext).inflate(
-							R.layout.sv__share_view_list_item, parent, false);
-					convertView.setId(ITEM_VIEW_TYPE_FOOTER);
-					TextView titleView = (TextView) convertView.findViewById(R.id.title);
-					titleView.setText(mContext.getString(R.string.See_all___));
-					titleView.setTextAppearance(mContext, 0);
-					titleView.setTextColor(mPopupTextColor);
-				}
-				return convertView;
+				return holder.itemView;
 
 			case ITEM_VIEW_TYPE_ACTIVITY:
-				if (convertView == null || convertView.getId() != R.id.list_item) {
-					convertView = LayoutInflater.from(mContext).inflate(
-							R.layout.sv__share_view_list_item, parent, false);
-				}
 				ActivityResolveInfo activity = (ActivityResolveInfo) getItem(position);
 
 				// Set the title.
-				TextView titleView = (TextView) convertView.findViewById(R.id.title);
-				titleView.setText(activity.label);
-				titleView.setTextColor(mPopupTextColor);
+				if (holder.label != activity.label) {
+					holder.label = activity.label;
+					holder.titleView.setText(activity.label);
+				}
 
 				// Set the icon
-				Drawable icon = activity.icon;
-				icon.setBounds(mActivityIconBounds);
-				titleView.setCompoundDrawables(icon, null, null, null);
+				final Drawable activityIcon = activity.getIcon();
+				if (holder.icon != activityIcon || holder.iconAtlas != mIconAtlas) {
+					holder.icon = activityIcon;
+					holder.iconAtlas = mIconAtlas;
+					Drawable icon = mIconAtlas != null ? getAtlasIcon(activityIcon) : activity.newIcon();
+					icon.setBounds(mActivityIconBounds);
+					holder.titleView.setCompoundDrawables(icon, null, null, null);
+				}
 
 				// Highlight the default.
-				if (mShowDefaultActivity && position == 0 && mHighlightDefaultActivity) {
-					SetActivated.invoke(convertView, true);
-				}
-				else {
-					SetActivated.invoke(convertView, false);
+				final boolean activated = mShowDefaultActivity && position == 0
+						&& mHighlightDefaultActivity;
+				if (holder.activated != activated) {
+					holder.activated = activated;
+					SetActivated.invoke(holder.itemView, activated);
 				}
-				return convertView;
+				return holder.itemView;
 
 			default:
 				throw new IllegalArgumentException();
 			}
 		}
 
+		/**
+		 * Gets the drawable for an icon from the atlas. The icons of activities
+		 * that are gone are released first.
+		 */
+		private Drawable getAtlasIcon(Drawable icon) {
+			final int snapshotVersion = mDataModel.getSnapshotVersion();
+			if (snapshotVersion != mIconAtlasSnapshotVersion) {
+				mIconAtlasSnapshotVersion = snapshotVersion;
+				HashSet<Drawable> icons = new HashSet<Drawable>();
+				final int activityCount = mDataModel.getActivityCount();
+				for (int i = 0; i < activityCount; i++) {
+					// Icons that were released are not in the atlas anyway.
+					icons.add(mDataModel.getActivity(i).icon);
+				}
+				mIconAtlas.retainOnly(icons);
+			}
+			return mIconAtlas.getDrawable(icon);
+		}
+
+		/**
+		 * Drops the icon atlas pages and the label widths, which are
+		 * rebuilt when next needed.
+		 */
+		public void releaseCaches() {
+			if (mIconAtlas != null) {
+				mIconAtlas.clear();
+			}
+			mLabelLayouts.clear();
+		}
+
+		public void setIconAtlasEnabled(boolean enabled) {
+			if (enabled == (mIconAtlas != null)) {
+				return;
+			}
+			if (enabled) {
+				mIconAtlas = new IconAtlas(mActivityIconBounds.width());
+			}
+			else {
+				mIconAtlas.clear();
+				mIconAtlas = null;
+			}
+			notifyDataSetChanged();
+		}
+
+		private ViewHolder newViewHolder(int itemViewType, ViewGroup parent) {
+			View itemView = LayoutInflater.from(mContext).inflate(
+					R.layout.sv__share_view_list_item, parent, false);
+			TextView titleView = (TextView) itemView.findViewById(R.id.title);
+			if (itemViewType == ITEM_VIEW_TYPE_FOOTER) {
+				titleView.setText(mContext.getString(R.string.See_all___));
+				titleView.setTextAppearance(mContext, 0);
+			}
+			// The text color never changes, so it is set once per row.
+			titleView.setTextColor(mPopupTextColor);
+			ViewHolder holder = new ViewHolder(itemViewType, itemView, titleView);
+			itemView.setTag(holder);
+			return holder;
+		}
+
 		public int measureContentWidth() {
+			final float fontScale = mContext.getResources().getConfiguration().fontScale;
+			final Resources.Theme theme = mContext.getTheme();
+			if (mLabelPaint == null || mMetricsFontScale != fontScale || mMetricsTheme != theme) {
+				measureRowMetrics();
+				mMetricsFontScale = fontScale;
+				mMetricsTheme = theme;
+				mContentWidth = -1;
+			}
+
+			final int snapshotVersion = mDataModel.getSnapshotVersion();
+			if (mContentWidth >= 0 && mContentWidthSnapshotVersion == snapshotVersion
+					&& mContentWidthShowDefaultActivity == mShowDefaultActivity
+					&& mContentWidthShowFooterView == mShowFooterView) {
+				return mContentWidth;
+			}
+
 			// The user may have specified some of the target not to be shown but we
 			// want to measure all of them since after expansion they should fit.
 			final int oldMaxActivityCount = mMaxActivityCount;
 			mMaxActivityCount = MAX_ACTIVITY_COUNT_UNLIMITED;
 
 			int contentWidth = 0;
-			View itemView = null;
+			HashSet<String> labels = new HashSet<String>();
 
-			final int widthMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
-			final int heightMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
 			final int count = getCount();
-
 			for (int i = 0; i < count; i++) {
-				itemView = getView(i, itemView, null);
-				itemView.measure(widthMeasureSpec, heightMeasureSpec);
-				contentWidth = Math.max(contentWidth, itemView.getMeasuredWidth());
+				if (getItemViewType(i) == ITEM_VIEW_TYPE_FOOTER) {
+					contentWidth = Math.max(contentWidth, mFooterWidth);
+					continue;
+				}
+				ActivityResolveInfo activity = (ActivityResolveInfo) getItem(i);
+				String label = String.valueOf(activity.label);
+				final int rowWidth = mRowChromeWidth
+						+ (int) Math.ceil(mLabelLayouts.getWidth(label, mLabelPaint));
+				labels.add(label);
+				contentWidth = Math.max(contentWidth, Math.max(mRowMinWidth, rowWidth));
 			}
 
 			mMaxActivityCount = oldMaxActivityCount;
 
+			// Only keep the widths of the current labels.
+			mLabelLayouts.retainOnly(labels);
+			mContentWidth = contentWidth;
+			mContentWidthSnapshotVersion = snapshotVersion;
+			mContentWidthShowDefaultActivity = mShowDefaultActivity;
+			mContentWidthShowFooterView = mShowFooterView;
+
 			return contentWidth;
 		}
 
+		/**
+		 * Measures the parts of a row that do not depend on its label, using
+		 * template rows inflated from the list item layout.
+		 */
+		private void measureRowMetrics() {
+			final int widthMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+			final int heightMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+
+			ViewHolder template = newViewHolder(ITEM_VIEW_TYPE_ACTIVITY, null);
+			Drawable icon = new ColorDrawable(Color.TRANSPARENT);
+			icon.setBounds(mActivityIconBounds);
+			template.titleView.setCompoundDrawables(icon, null, null, null);
+			template.titleView.setText("");
+			template.itemView.measure(widthMeasureSpec, heightMeasureSpec);
+			mRowMinWidth = template.itemView.getMeasuredWidth();
+			mRowChromeWidth = template.itemView.getPaddingLeft() + template.itemView.getPaddingRight()
+					+ template.titleView.getCompoundPaddingLeft()
+					+ template.titleView.getCompoundPaddingRight();
+			mLabelPaint = template.titleView.getPaint();
+
+			View footer = newViewHolder(ITEM_VIEW_TYPE_FOOTER, null).itemView;
+			footer.measure(widthMeasureSpec, heightMeasureSpec);
+			mFooterWidth = footer.getMeasuredWidth();
+		}
+
 		public void setMaxActivityCount(int maxActivityCount) {
 			if (mMaxActivityCount != maxActivityCount) {
 				mMaxActivityCount = maxActivityCount;
@@ -0,0 +1,434 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * An {@link IncrementalHistoryStore} which can be shared by several processes
+ * of the same application, for example a main and a <code>:media</code>
+ * process that both show share UI.
+ * <p>
+ * The records are kept in an append-only log in an application private file.
+ * Every record carries a sequence number. Access to the file is serialized
+ * across processes with {@link FileChannel} locks: readers take a shared lock,
+ * writers an exclusive one. Each instance remembers how far it has read the
+ * log, so a read only parses the records appended since, and a write only
+ * appends the new records. Once the log holds more than
+ * {@link #COMPACTION_FACTOR} times the maximal history size it is compacted in
+ * place and its generation is bumped; readers notice the new generation and
+ * rescan the log, skipping the sequence numbers they have already seen.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> Use a single instance per file in each process,
+ * which is what registering the store with
+ * {@link ActivityChooserModel#get(Context, String, HistoryStore)} does.
+ * </p>
+ */
+public class SharedHistoryStore implements IncrementalHistoryStore {
+
+	/**
+	 * Flag for selecting debug mode.
+	 */
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Tag used for logging.
+	 */
+	private static final String LOG_TAG = SharedHistoryStore.class.getSimpleName();
+
+	/**
+	 * Magic number at the start of the log, "SHL1".
+	 */
+	private static final int LOG_MAGIC = 0x53484c31;
+
+	/**
+	 * Size of the header: the magic number and the generation.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * How much the log may outgrow the maximal history size before it is compacted.
+	 */
+	public static final int COMPACTION_FACTOR = 2;
+
+	/**
+	 * The log file.
+	 */
+	private final File mFile;
+
+	/**
+	 * The number of records kept when the log is compacted.
+	 */
+	private final int mMaxRecords;
+
+	/**
+	 * The generation of the log the read position refers to, -1 if unknown.
+	 */
+	private int mGeneration = -1;
+
+	/**
+	 * Position in the log after the last record read.
+	 */
+	private long mReadPosition = HEADER_SIZE;
+
+	/**
+	 * The highest sequence number seen.
+	 */
+	private long mLastSequence;
+
+	/**
+	 * The number of records in the log, as far as it was read.
+	 */
+	private int mLogRecordCount;
+
+	/**
+	 * Records appended by other processes which were read while appending
+	 * and not yet returned by {@link #readNewHistoricalRecords()}.
+	 */
+	private final List<HistoricalRecord> mUnreturnedRecords = new ArrayList<HistoricalRecord>();
+
+	/**
+	 * Creates a new instance keeping up to
+	 * {@link ActivityChooserModel#DEFAULT_HISTORY_MAX_LENGTH} records.
+	 *
+	 * @param context Context for accessing files.
+	 * @param logFileName The name of the log file.
+	 */
+	public SharedHistoryStore(Context context, String logFileName) {
+		this(context, logFileName, ActivityChooserModel.DEFAULT_HISTORY_MAX_LENGTH);
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context Context for accessing files.
+	 * @param logFileName The name of the log file.
+	 * @param maxRecords The number of records kept when the log is compacted.
+	 */
+	public SharedHistoryStore(Context context, String logFileName, int maxRecords) {
+		mFile = context.getApplicationContext().getFileStreamPath(logFileName);
+		mMaxRecords = maxRecords;
+	}
+
+	public synchronized List<HistoricalRecord> readHistoricalRecords() throws IOException {
+		mGeneration = -1;
+		mReadPosition = HEADER_SIZE;
+		mLastSequence = 0;
+		mLogRecordCount = 0;
+		mUnreturnedRecords.clear();
+		return readNewHistoricalRecords();
+	}
+
+	public synchronized List<HistoricalRecord> readNewHistoricalRecords() throws IOException {
+		List<HistoricalRecord> readRecords = new ArrayList<HistoricalRecord>(mUnreturnedRecords);
+		mUnreturnedRecords.clear();
+		if (!mFile.exists()) {
+			return readRecords;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+			try {
+				readTailLocked(channel, readRecords);
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Read " + readRecords.size() + " new historical records.");
+		}
+
+		return readRecords;
+	}
+
+	public synchronized void appendHistoricalRecords(List<HistoricalRecord> records)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				// Catch up first so that the sequence numbers continue the log.
+				readTailLocked(channel, mUnreturnedRecords);
+				if (channel.size() < HEADER_SIZE) {
+					rewriteLocked(channel, new ArrayList<HistoricalRecord>(), new long[0], mGeneration);
+				}
+				else if (channel.size() > mReadPosition) {
+					// A writer died half way through a record; cut it off so
+					// that the records appended now can be read.
+					channel.truncate(mReadPosition);
+				}
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				final int recordCount = records.size();
+				for (int i = 0; i < recordCount; i++) {
+					writeRecord(out, ++mLastSequence, records.get(i));
+				}
+				out.flush();
+
+				final long position = mReadPosition;
+				writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), position);
+				mReadPosition = position + bytes.size();
+				mLogRecordCount += recordCount;
+
+				if (mLogRecordCount > mMaxRecords * COMPACTION_FACTOR) {
+					compactLocked(channel);
+				}
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Appended " + records.size() + " historical records.");
+		}
+	}
+
+	public synchronized void writeHistoricalRecords(List<HistoricalRecord> records)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			FileLock lock = channel.lock();
+			try {
+				readTailLocked(channel, mUnreturnedRecords);
+				// Records of other processes that are not written are still to
+				// be returned, so that the model can merge them.
+				final int writtenRecordCount = records.size();
+				for (int i = 0; i < writtenRecordCount && !mUnreturnedRecords.isEmpty(); i++) {
+					mUnreturnedRecords.remove(records.get(i));
+				}
+
+				// Records already in the log keep their sequence numbers, so that
+				// other processes do not take them for new ones after the rewrite.
+				List<HistoricalRecord> loggedRecords = new ArrayList<HistoricalRecord>();
+				List<Long> loggedSequences = new ArrayList<Long>();
+				readAllLocked(channel, loggedRecords, loggedSequences);
+				Map<HistoricalRecord, List<Long>> sequencesByRecord =
+						new HashMap<HistoricalRecord, List<Long>>();
+				final int loggedRecordCount = loggedRecords.size();
+				for (int i = 0; i < loggedRecordCount; i++) {
+					HistoricalRecord loggedRecord = loggedRecords.get(i);
+					List<Long> recordSequences = sequencesByRecord.get(loggedRecord);
+					if (recordSequences == null) {
+						recordSequences = new ArrayList<Long>(1);
+						sequencesByRecord.put(loggedRecord, recordSequences);
+					}
+					recordSequences.add(loggedSequences.get(i));
+				}
+
+				final int recordCount = records.size();
+				long[] sequences = new long[recordCount];
+				for (int i = 0; i < recordCount; i++) {
+					List<Long> recordSequences = sequencesByRecord.get(records.get(i));
+					if (recordSequences != null && !recordSequences.isEmpty()) {
+						sequences[i] = recordSequences.remove(0);
+					}
+					else {
+						sequences[i] = ++mLastSequence;
+					}
+				}
+				rewriteLocked(channel, records, sequences, mGeneration);
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the records appended to the log since the last read. Must be
+	 * called holding a lock on the log.
+	 */
+	private void readTailLocked(FileChannel channel, List<HistoricalRecord> out)
+			throws IOException {
+		final long size = channel.size();
+		if (size < HEADER_SIZE) {
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		if (header.getInt(0) != LOG_MAGIC) {
+			throw new IOException("Not a shared history log: " + mFile);
+		}
+		final int generation = header.getInt(4);
+		if (generation != mGeneration || size < mReadPosition) {
+			// The log was compacted, rescan it.
+			mGeneration = generation;
+			mReadPosition = HEADER_SIZE;
+			mLogRecordCount = 0;
+		}
+		if (size == mReadPosition) {
+			return;
+		}
+
+		ByteBuffer tail = ByteBuffer.allocate((int) (size - mReadPosition));
+		readFully(channel, tail, mReadPosition);
+		ByteArrayInputStream bytes = new ByteArrayInputStream(tail.array());
+		DataInputStream in = new DataInputStream(bytes);
+		final long start = mReadPosition;
+		final int length = tail.capacity();
+		// A rewritten log is not in sequence order, so compare with what was
+		// seen before this read rather than with the highest sequence so far.
+		final long lastSeenSequence = mLastSequence;
+		try {
+			while (bytes.available() > 0) {
+				final long sequence = in.readLong();
+				final long time = in.readLong();
+				final float weight = in.readFloat();
+				final String activity = in.readUTF();
+				mReadPosition = start + length - bytes.available();
+				mLogRecordCount++;
+				if (sequence > lastSeenSequence) {
+					mLastSequence = Math.max(mLastSequence, sequence);
+					out.add(new HistoricalRecord(activity, time, weight));
+				}
+			}
+		}
+		catch (EOFException eofe) {
+			// A writer died half way through a record. The read position stays
+			// before it, and the next append or rewrite overwrites it.
+			Log.w(LOG_TAG, "Truncated shared history log: " + mFile);
+		}
+	}
+
+	/**
+	 * Rewrites the log with just the most recent records. Must be called
+	 * holding an exclusive lock on the log.
+	 */
+	private void compactLocked(FileChannel channel) throws IOException {
+		List<HistoricalRecord> records = new ArrayList<HistoricalRecord>();
+		List<Long> sequences = new ArrayList<Long>();
+		readAllLocked(channel, records, sequences);
+
+		final int start = Math.max(0, records.size() - mMaxRecords);
+		final int keptCount = records.size() - start;
+		long[] keptSequences = new long[keptCount];
+		for (int i = 0; i < keptCount; i++) {
+			keptSequences[i] = sequences.get(start + i);
+		}
+		rewriteLocked(channel, records.subList(start, records.size()), keptSequences, mGeneration);
+
+		if (DEBUG) {
+			Log.i(LOG_TAG, "Compacted log to " + keptCount + " historical records.");
+		}
+	}
+
+	/**
+	 * Reads every record in the log along with its sequence number.
+	 */
+	private void readAllLocked(FileChannel channel, List<HistoricalRecord> records,
+			List<Long> sequences) throws IOException {
+		final long size = channel.size();
+		if (size <= HEADER_SIZE) {
+			return;
+		}
+		ByteBuffer body = ByteBuffer.allocate((int) (size - HEADER_SIZE));
+		readFully(channel, body, HEADER_SIZE);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+		try {
+			while (in.available() > 0) {
+				final long sequence = in.readLong();
+				final long time = in.readLong();
+				final float weight = in.readFloat();
+				final String activity = in.readUTF();
+				sequences.add(sequence);
+				records.add(new HistoricalRecord(activity, time, weight));
+			}
+		}
+		catch (EOFException eofe) {
+			/* drop the partial record */
+		}
+	}
+
+	/**
+	 * Replaces the content of the log and bumps its generation. Must be
+	 * called holding an exclusive lock on the log.
+	 */
+	private void rewriteLocked(FileChannel channel, List<HistoricalRecord> records,
+			long[] sequences, int previousGeneration) throws IOException {
+		final int generation = previousGeneration + 1;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(LOG_MAGIC);
+		out.writeInt(generation);
+		final int recordCount = records.size();
+		for (int i = 0; i < recordCount; i++) {
+			writeRecord(out, sequences[i], records.get(i));
+			mLastSequence = Math.max(mLastSequence, sequences[i]);
+		}
+		out.flush();
+
+		writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()), 0);
+		channel.truncate(bytes.size());
+		channel.force(false);
+
+		mGeneration = generation;
+		mReadPosition = bytes.size();
+		mLogRecordCount = recordCount;
+	}
+
+	private static void writeRecord(DataOutputStream out, long sequence, HistoricalRecord record)
+			throws IOException {
+		out.writeLong(sequence);
+		out.writeLong(record.time);
+		out.writeFloat(record.weight);
+		out.writeUTF(record.activity.flattenToString());
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mFile.getName();
+	}
+}
@@ -0,0 +1,222 @@
+package com.dgmltn.shareeverywhere;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Xml;
+
+import com.dgmltn.shareeverywhere.ActivityChooserModel.HistoricalRecord;
+
+/**
+ * The legacy {@link HistoryStore} which keeps the records in an application
+ * private XML file. The whole file is parsed on read and rewritten on write.
+ */
+public class XmlHistoryStore implements HistoryStore {
+
+	/**
+	 * Flag for selecting debug mode.
+	 */
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Tag used for logging.
+	 */
+	private static final String LOG_TAG = XmlHistoryStore.class.getSimpleName();
+
+	/**
+	 * The root tag in the history file.
+	 */
+	private static final String TAG_HISTORICAL_RECORDS = "historical-records";
+
+	/**
+	 * The tag for a record in the history file.
+	 */
+	private static final String TAG_HISTORICAL_RECORD = "historical-record";
+
+	/**
+	 * Attribute for the activity.
+	 */
+	private static final String ATTRIBUTE_ACTIVITY = "activity";
+
+	/**
+	 * Attribute for the choice time.
+	 */
+	private static final String ATTRIBUTE_TIME = "time";
+
+	/**
+	 * Attribute for the choice weight.
+	 */
+	private static final String ATTRIBUTE_WEIGHT = "weight";
+
+	/**
+	 * The extension of the history file.
+	 */
+	private static final String HISTORY_FILE_EXTENSION = ".xml";
+
+	/**
+	 * Context for accessing the application private files.
+	 */
+	private final Context mContext;
+
+	/**
+	 * The name of the history file.
+	 */
+	private final String mHistoryFileName;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param context Context for accessing files.
+	 * @param historyFileName The history XML file. The ".xml" extension
+	 *        is appended if missing.
+	 */
+	public XmlHistoryStore(Context context, String historyFileName) {
+		mContext = context.getApplicationContext();
+		if (!historyFileName.endsWith(HISTORY_FILE_EXTENSION)) {
+			mHistoryFileName = historyFileName + HISTORY_FILE_EXTENSION;
+		}
+		else {
+			mHistoryFileName = historyFileName;
+		}
+	}
+
+	public List<HistoricalRecord> readHistoricalRecords() throws IOException {
+		List<HistoricalRecord> readRecords = new ArrayList<HistoricalRecord>();
+
+		FileInputStream fis = null;
+		try {
+			fis = mContext.openFileInput(mHistoryFileName);
+		}
+		catch (FileNotFoundException fnfe) {
+			if (DEBUG) {
+				Log.i(LOG_TAG, "Could not open historical records file: " + mHistoryFileName);
+			}
+			return readRecords;
+		}
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(fis, null);
+
+			int type = XmlPullParser.START_DOCUMENT;
+			while (type != XmlPullParser.END_DOCUMENT && type != XmlPullParser.START_TAG) {
+				type = parser.next();
+			}
+
+			if (!TAG_HISTORICAL_RECORDS.equals(parser.getName())) {
+				throw new XmlPullParserException("Share records file does not start with "
+						+ TAG_HISTORICAL_RECORDS + " tag.");
+			}
+
+			while (true) {
+				type = parser.next();
+				if (type == XmlPullParser.END_DOCUMENT) {
+					break;
+				}
+				if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+					continue;
+				}
+				String nodeName = parser.getName();
+				if (!TAG_HISTORICAL_RECORD.equals(nodeName)) {
+					throw new XmlPullParserException("Share records file not well-formed.");
+				}
+
+				String activity = parser.getAttributeValue(null, ATTRIBUTE_ACTIVITY);
+				final long time =
+						Long.parseLong(parser.getAttributeValue(null, ATTRIBUTE_TIME));
+				final float weight =
+						Float.parseFloat(parser.getAttributeValue(null, ATTRIBUTE_WEIGHT));
+
+				HistoricalRecord readRecord = new HistoricalRecord(activity, time, weight);
+				readRecords.add(readRecord);
+
+				if (DEBUG) {
+					Log.i(LOG_TAG, "Read " + readRecord.toString());
+				}
+			}
+
+			if (DEBUG) {
+				Log.i(LOG_TAG, "Read " + readRecords.size() + " historical records.");
+			}
+
+			return readRecords;
+		}
+		catch (XmlPullParserException xppe) {
+			IOException ioe = new IOException("Error reading historical recrod file: " + mHistoryFileName);
+			ioe.initCause(xppe);
+			throw ioe;
+		}
+		finally {
+			try {
+				fis.close();
+			}
+			catch (IOException ioe) {
+				/* ignore */
+			}
+		}
+	}
+
+	public void writeHistoricalRecords(List<HistoricalRecord> records) throws IOException {
+		FileOutputStream fos = mContext.openFileOutput(mHistoryFileName, Context.MODE_PRIVATE);
+
+		XmlSerializer serializer = Xml.newSerializer();
+
+		try {
+			serializer.setOutput(fos, null);
+			serializer.startDocument("UTF-8", true);
+			serializer.startTag(null, TAG_HISTORICAL_RECORDS);
+
+			final int recordCount = records.size();
+			for (int i = 0; i < recordCount; i++) {
+				HistoricalRecord record = records.get(i);
+				serializer.startTag(null, TAG_HISTORICAL_RECORD);
+				serializer.attribute(null, ATTRIBUTE_ACTIVITY, record.activity.flattenToString());
+				serializer.attribute(null, ATTRIBUTE_TIME, String.valueOf(record.time));
+				serializer.attribute(null, ATTRIBUTE_WEIGHT, String.valueOf(record.weight));
+				serializer.endTag(null, TAG_HISTORICAL_RECORD);
+				if (DEBUG) {
+					Log.i(LOG_TAG, "Wrote " + record.toString());
+				}
+			}
+
+			serializer.endTag(null, TAG_HISTORICAL_RECORDS);
+			serializer.endDocument();
+
+			if (DEBUG) {
+				Log.i(LOG_TAG, "Wrote " + recordCount + " historical records.");
+			}
+		}
+		catch (IllegalArgumentException iae) {
+			IOException ioe = new IOException("Error writing historical recrod file: " + mHistoryFileName);
+			ioe.initCause(iae);
+			throw ioe;
+		}
+		catch (IllegalStateException ise) {
+			IOException ioe = new IOException("Error writing historical recrod file: " + mHistoryFileName);
+			ioe.initCause(ise);
+			throw ioe;
+		}
+		finally {
+			try {
+				fos.close();
+			}
+			catch (IOException e) {
+				/* ignore */
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mHistoryFileName;
+	}
+}